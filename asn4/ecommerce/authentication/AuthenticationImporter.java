@@ -2,9 +2,11 @@ package cscie97.asn4.ecommerce.authentication;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.IOException;
 import java.util.UUID;
 
+import cscie97.asn4.ecommerce.util.CsvTokenizer;
+
 /**
  * The AuthenticationImporter class is responsible for reading csv input files 
  * to import data for the AuthenticationService.  The AuthenticationImporter class parses 
@@ -33,42 +35,40 @@ public class AuthenticationImporter {
 	 * @throws InvalidAccessTokenException 
 	 */
 	public void importAuthenticationCsvFile(UUID authId, String filename) throws AuthenticationImportException, EntitlementChildException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException {
-    	Scanner lineScanner = null;
+    	CsvTokenizer lineTokenizer = null;
 
     	String line = "";
     	int lineNum = 0;
     	
 		try {
-			// reading file line by line using Scanner
-			lineScanner = new Scanner(new FileInputStream(filename));
+			// reading file line by line, each line is tokenized as it is read
+			lineTokenizer = new CsvTokenizer(new FileInputStream(filename));
 				      
-	    	while(lineScanner.hasNextLine()){
-	    		line = lineScanner.nextLine().trim();
+	    	while(lineTokenizer.nextLine()){
+	    		line = lineTokenizer.getLine();
 	    		// keeping track of the number of lines we have read
 	    		lineNum += 1;
-	    		if(line.equals("") || line.charAt(0)=='#'){
+	    		if(lineTokenizer.isBlankOrComment()){
 	    			// we are ignoring comments and blank lines and do not count these as parsing errors 
 	    		} else {
-	    			// dealing with case insensitivity
-	    			line = line.toLowerCase();
-	    			// splitting the lines on a comma delimiter, but ignoring escaped commas (\,)
-	    			String[] splitString = line.split("(?<!\\\\),");	    			
+	    			// the tokenizer converts the line to lower case for case insensitivity and splits it
+	    			// on a comma delimiter, but ignoring escaped commas (\,)
 	    				    			
-	    			if(splitString.length>0){
-	    				 if(splitString[0].equals("define_service")){
-	    					 defineService(authId, splitString);
-	    				 }else if(splitString[0].equals("define_permission")){
-	    					 definePermission(authId, splitString);
-	    				 }else if(splitString[0].equals("define_role")){
-	    					 defineRole(authId, splitString);
-	    				 }else if(splitString[0].equals("add_entitlement_to_role")){
-	    					 addEntitlementToRole(authId, splitString);
-	    				 }else if(splitString[0].equals("create_user")){
-	    					 createUser(authId, splitString);
-	    				 }else if(splitString[0].equals("add_credential")){
-	    					 addCredential(authId, splitString);
-	    				 }else if(splitString[0].equals("add_entitlement_to_user")){
-	    					 addEntitlementToUser(authId, splitString);
+	    			if(lineTokenizer.getFieldCount()>0){
+	    				 if("define_service".contentEquals(lineTokenizer.getField(0))){
+	    					 defineService(authId, lineTokenizer);
+	    				 }else if("define_permission".contentEquals(lineTokenizer.getField(0))){
+	    					 definePermission(authId, lineTokenizer);
+	    				 }else if("define_role".contentEquals(lineTokenizer.getField(0))){
+	    					 defineRole(authId, lineTokenizer);
+	    				 }else if("add_entitlement_to_role".contentEquals(lineTokenizer.getField(0))){
+	    					 addEntitlementToRole(authId, lineTokenizer);
+	    				 }else if("create_user".contentEquals(lineTokenizer.getField(0))){
+	    					 createUser(authId, lineTokenizer);
+	    				 }else if("add_credential".contentEquals(lineTokenizer.getField(0))){
+	    					 addCredential(authId, lineTokenizer);
+	    				 }else if("add_entitlement_to_user".contentEquals(lineTokenizer.getField(0))){
+	    					 addEntitlementToUser(authId, lineTokenizer);
 	    				 }else{
 	    					 throw new AuthenticationImportException("Invalid command specified", line, lineNum, filename, new Exception());
 	    				 }
@@ -80,6 +80,9 @@ public class AuthenticationImporter {
 		} catch (FileNotFoundException fnfe) {
 			// catching the FileNotFoundException and throwing our custom Exception, which includes useful info
 			throw new AuthenticationImportException("Filepath not found", line, lineNum, filename, fnfe);
+		} catch (IOException ioe) {
+			// catching an error reading the file and throwing our custom Exception, which includes useful info
+			throw new AuthenticationImportException("Error reading file", line, lineNum, filename, ioe);
 		} catch (AuthenticationImportException ie) {
 			// catching ImportException due to invalid line input and re-throwing
 			ie.setLineWhereFailed(line);
@@ -108,8 +111,12 @@ public class AuthenticationImporter {
 			throw ece;
 		}finally {
 			// ensuring the closure the underlying stream
-			if(lineScanner != null){
-				lineScanner.close();
+			if(lineTokenizer != null){
+				try {
+					lineTokenizer.close();
+				} catch (IOException ioe) {
+					// the input was fully read or has already failed, nothing is lost
+				}
 			}
 		}
 	}
@@ -118,21 +125,21 @@ public class AuthenticationImporter {
 	 * Processes the 'define_collection' command from the importer.
 	 * Validates input data and calls AuthenticationService createService method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws AuthenticationImportException if invalid input if passed
 	 * @throws AccessDeniedException when user has invalid access 
 	 * @throws InvalidReferenceException exception while referencing object
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void defineService(UUID authId, String[] splitString) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
+	private void defineService(UUID authId, CsvTokenizer fields) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
 		// when line is parsed we should only have 5 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==4){
+		if(fields.getFieldCount()==4){
 					
 			// removing any escape characters from inputs
-			String serviceId = splitString[1].trim().replaceAll("\\\\", "");
-			String serviceName = splitString[2].trim().replaceAll("\\\\", "");
-			String serviceDesc = splitString[3].trim().replaceAll("\\\\", "");
+			String serviceId = fields.getUnescaped(1);
+			String serviceName = fields.getUnescaped(2);
+			String serviceDesc = fields.getUnescaped(3);
 			
 			// calling singleton instance of AuthenticationService
 			AuthenticationService aService = AuthenticationServiceImpl.getInstance();
@@ -148,23 +155,23 @@ public class AuthenticationImporter {
 	 * Processes the 'define_permission' command from the importer.
 	 * Validates input data and calls AuthenticationService createPermission method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws AuthenticationImportException if invalid input if passed
 	 * @throws EntitlementChildException exception while interacting with child
 	 * @throws AccessDeniedException when user has invalid access 
 	 * @throws InvalidReferenceException exception while referencing object
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void definePermission(UUID authId, String[] splitString) throws AuthenticationImportException, EntitlementChildException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
+	private void definePermission(UUID authId, CsvTokenizer fields) throws AuthenticationImportException, EntitlementChildException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
 		// when line is parsed we should only have 5 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==5){
+		if(fields.getFieldCount()==5){
 					
 			// removing any escape characters from inputs
-			String serviceId = splitString[1].trim().replaceAll("\\\\", "");
-			String permissionId = splitString[2].trim().replaceAll("\\\\", "");
-			String permissionName = splitString[3].trim().replaceAll("\\\\", "");
-			String permissionDesc = splitString[4].trim().replaceAll("\\\\", "");
+			String serviceId = fields.getUnescaped(1);
+			String permissionId = fields.getUnescaped(2);
+			String permissionName = fields.getUnescaped(3);
+			String permissionDesc = fields.getUnescaped(4);
 			
 			// calling singleton instance of AuthenticationService
 			AuthenticationService aService = AuthenticationServiceImpl.getInstance();
@@ -180,21 +187,21 @@ public class AuthenticationImporter {
 	 * Processes the 'define_role' command from the importer.
 	 * Validates input data and calls AuthenticationService createRole method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws AuthenticationImportException if invalid input if passed
 	 * @throws AccessDeniedException when user has invalid access 
 	 * @throws InvalidReferenceException exception while referencing object
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void defineRole(UUID authId, String[] splitString) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
+	private void defineRole(UUID authId, CsvTokenizer fields) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
 		// when line is parsed we should only have 4 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==4){
+		if(fields.getFieldCount()==4){
 					
 			// removing any escape characters from inputs
-			String roleId = splitString[1].trim().replaceAll("\\\\", "");
-			String roleName = splitString[2].trim().replaceAll("\\\\", "");
-			String roleDesc = splitString[3].trim().replaceAll("\\\\", "");
+			String roleId = fields.getUnescaped(1);
+			String roleName = fields.getUnescaped(2);
+			String roleDesc = fields.getUnescaped(3);
 			
 			// calling singleton instance of AuthenticationService
 			AuthenticationService aService = AuthenticationServiceImpl.getInstance();
@@ -210,21 +217,21 @@ public class AuthenticationImporter {
 	 * Processes the 'add_entitlement_to_role' command from the importer.
 	 * Validates input data and calls AuthenticationService addEntitlementToRole method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws AuthenticationImportException if invalid input if passed
 	 * @throws EntitlementChildException exception while interacting with child
 	 * @throws AccessDeniedException when user has invalid access 
 	 * @throws InvalidReferenceException exception while referencing object
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void addEntitlementToRole(UUID authId, String[] splitString) throws AuthenticationImportException, EntitlementChildException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
+	private void addEntitlementToRole(UUID authId, CsvTokenizer fields) throws AuthenticationImportException, EntitlementChildException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
 		// when line is parsed we should only have 3 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==3){
+		if(fields.getFieldCount()==3){
 					
 			// removing any escape characters from inputs
-			String roleId = splitString[1].trim().replaceAll("\\\\", "");
-			String entitleId = splitString[2].trim().replaceAll("\\\\", "");
+			String roleId = fields.getUnescaped(1);
+			String entitleId = fields.getUnescaped(2);
 			
 			// calling singleton instance of AuthenticationService
 			AuthenticationService aService = AuthenticationServiceImpl.getInstance();
@@ -240,20 +247,20 @@ public class AuthenticationImporter {
 	 * Processes the 'create_user' command from the importer.
 	 * Validates input data and calls AuthenticationService createUser method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws AuthenticationImportException if invalid input if passed
 	 * @throws AccessDeniedException when user has invalid access 
 	 * @throws InvalidReferenceException exception while referencing object
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void createUser(UUID authId, String[] splitString) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
+	private void createUser(UUID authId, CsvTokenizer fields) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
 		// when line is parsed we should only have 3 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==3){
+		if(fields.getFieldCount()==3){
 					
 			// removing any escape characters from inputs
-			String userId = splitString[1].trim().replaceAll("\\\\", "");
-			String userName = splitString[2].trim().replaceAll("\\\\", "");
+			String userId = fields.getUnescaped(1);
+			String userName = fields.getUnescaped(2);
 			
 			// calling singleton instance of AuthenticationService
 			AuthenticationService aService = AuthenticationServiceImpl.getInstance();
@@ -269,21 +276,21 @@ public class AuthenticationImporter {
 	 * Processes the 'add_credential' command from the importer.
 	 * Validates input data and calls AuthenticationService addCredentialToUser method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws AuthenticationImportException if invalid input if passed
 	 * @throws AccessDeniedException when user has invalid access 
 	 * @throws InvalidReferenceException exception while referencing object
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void addCredential(UUID authId, String[] splitString) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
+	private void addCredential(UUID authId, CsvTokenizer fields) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
 		// when line is parsed we should only have 4 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==4){
+		if(fields.getFieldCount()==4){
 					
 			// removing any escape characters from inputs
-			String userId = splitString[1].trim().replaceAll("\\\\", "");
-			String loginName = splitString[2].trim().replaceAll("\\\\", "");
-			String password = splitString[3].trim().replaceAll("\\\\", "");
+			String userId = fields.getUnescaped(1);
+			String loginName = fields.getUnescaped(2);
+			String password = fields.getUnescaped(3);
 			
 			// calling singleton instance of AuthenticationService
 			AuthenticationService aService = AuthenticationServiceImpl.getInstance();
@@ -299,20 +306,20 @@ public class AuthenticationImporter {
 	 * Processes the 'add_entitlement_to_user' command from the importer.
 	 * Validates input data and calls AuthenticationService addEntitlementToUser method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws AuthenticationImportException if invalid input if passed
 	 * @throws AccessDeniedException when user has invalid access 
 	 * @throws InvalidReferenceException exception while referencing object
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void addEntitlementToUser(UUID authId, String[] splitString) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
+	private void addEntitlementToUser(UUID authId, CsvTokenizer fields) throws AuthenticationImportException, InvalidReferenceException, AccessDeniedException, InvalidAccessTokenException{
 		// when line is parsed we should only have 3 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==3){
+		if(fields.getFieldCount()==3){
 					
 			// removing any escape characters from inputs
-			String userId = splitString[1].trim().replaceAll("\\\\", "");
-			String entitleId = splitString[2].trim().replaceAll("\\\\", "");
+			String userId = fields.getUnescaped(1);
+			String entitleId = fields.getUnescaped(2);
 			
 			// calling singleton instance of AuthenticationService
 			AuthenticationService aService = AuthenticationServiceImpl.getInstance();
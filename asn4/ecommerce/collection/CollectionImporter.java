@@ -2,14 +2,15 @@ package cscie97.asn4.ecommerce.collection;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Scanner;
 import java.util.Set;
 import java.util.UUID;
 
 import cscie97.asn4.ecommerce.authentication.AccessDeniedException;
 import cscie97.asn4.ecommerce.authentication.InvalidAccessTokenException;
+import cscie97.asn4.ecommerce.util.CsvTokenizer;
 
 /**
  * The CollectionImporter class is responsible for reading csv input files to import 
@@ -41,36 +42,34 @@ public class CollectionImporter {
 	 * @throws InvalidAccessTokenException 
 	 */
 	public void importCollectionCsvFile(UUID adminGuid, String filename) throws CollectionImportException, CollectableChildException, CollectableValidationException, AccessDeniedException, InvalidAccessTokenException {
-    	Scanner lineScanner = null;
+    	CsvTokenizer lineTokenizer = null;
 
     	String line = "";
     	int lineNum = 0;
     	
 		try {
-			// reading file line by line using Scanner
-			lineScanner = new Scanner(new FileInputStream(filename));
+			// reading file line by line, each line is tokenized as it is read
+			lineTokenizer = new CsvTokenizer(new FileInputStream(filename));
 				      
-	    	while(lineScanner.hasNextLine()){
-	    		line = lineScanner.nextLine().trim();
+	    	while(lineTokenizer.nextLine()){
+	    		line = lineTokenizer.getLine();
 	    		// keeping track of the number of lines we have read
 	    		lineNum += 1;
-	    		if(line.equals("") || line.charAt(0)=='#'){
+	    		if(lineTokenizer.isBlankOrComment()){
 	    			// we are ignoring comments and blank lines and do not count these as parsing errors 
 	    		} else {
-	    			// dealing with case insensitivity
-	    			line = line.toLowerCase();
-	    			// splitting the lines on a comma delimiter, but ignoring escaped commas (\,)
-	    			String[] splitString = line.split("(?<!\\\\),");	    			
+	    			// the tokenizer converts the line to lower case for case insensitivity and splits it
+	    			// on a comma delimiter, but ignoring escaped commas (\,)
 	    				    			
-	    			if(splitString.length>0){
-	    				 if(splitString[0].equals("define_collection")){
-	    					 defineCollection(adminGuid, splitString);
-	    				 }else if(splitString[0].equals("add_collection_content")){
-	    					 addCollectionContent(adminGuid, splitString);
-	    				 }else if(splitString[0].equals("set_dynamic_criteria")){
-	    					 setDynamicCriteria(adminGuid, splitString);
-	    				 }else if(splitString[0].equals("search_collection")){
-	    					 searchCollection(splitString);
+	    			if(lineTokenizer.getFieldCount()>0){
+	    				 if("define_collection".contentEquals(lineTokenizer.getField(0))){
+	    					 defineCollection(adminGuid, lineTokenizer);
+	    				 }else if("add_collection_content".contentEquals(lineTokenizer.getField(0))){
+	    					 addCollectionContent(adminGuid, lineTokenizer);
+	    				 }else if("set_dynamic_criteria".contentEquals(lineTokenizer.getField(0))){
+	    					 setDynamicCriteria(adminGuid, lineTokenizer);
+	    				 }else if("search_collection".contentEquals(lineTokenizer.getField(0))){
+	    					 searchCollection(lineTokenizer);
 	    				 }else{
 	    					 throw new CollectionImportException("Invalid command specified", line, lineNum, filename, new Exception());
 	    				 }
@@ -82,6 +81,9 @@ public class CollectionImporter {
 		} catch (FileNotFoundException fnfe) {
 			// catching the FileNotFoundException and throwing our custom Exception, which includes useful info
 			throw new CollectionImportException("Filepath not found", line, lineNum, filename, fnfe);
+		} catch (IOException ioe) {
+			// catching an error reading the file and throwing our custom Exception, which includes useful info
+			throw new CollectionImportException("Error reading file", line, lineNum, filename, ioe);
 		} catch (CollectionImportException ie) {
 			// catching ImportException due to invalid line input and re-throwing
 			ie.setLineWhereFailed(line);
@@ -112,8 +114,12 @@ public class CollectionImporter {
 			throw iate;
 		}finally {
 			// ensuring the closure the underlying stream
-			if(lineScanner != null){
-				lineScanner.close();
+			if(lineTokenizer != null){
+				try {
+					lineTokenizer.close();
+				} catch (IOException ioe) {
+					// the input was fully read or has already failed, nothing is lost
+				}
 			}
 		}
 	}
@@ -122,23 +128,23 @@ public class CollectionImporter {
 	 * Processes the 'define_collection' command from the importer.
 	 * Validates input data and calls CollectionService createCollection method
 	 * @param adminGuid used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws CollectionImportException if invalid input if passed
 	 * @throws CollectableChildException if exception occurs while creating Collectable child
 	 * @throws CollectableValidationException if invalid action performed while modifying a Collectable object
 	 * @throws AccessDeniedException 
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void defineCollection(UUID adminGuid, String[] splitString) throws CollectionImportException, CollectableChildException, CollectableValidationException, AccessDeniedException, InvalidAccessTokenException {
+	private void defineCollection(UUID adminGuid, CsvTokenizer fields) throws CollectionImportException, CollectableChildException, CollectableValidationException, AccessDeniedException, InvalidAccessTokenException {
 		// when line is parsed we should only have 5 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==5){
+		if(fields.getFieldCount()==5){
 					
 			// removing any escape characters from inputs
-			String collectionType = splitString[1].trim().replaceAll("\\\\", "");
-			String collectionId = splitString[2].trim().replaceAll("\\\\", "");
-			String collectionName = splitString[3].trim().replaceAll("\\\\", "");
-			String collectionDesc = splitString[4].trim().replaceAll("\\\\", "");
+			String collectionType = fields.getUnescaped(1);
+			String collectionId = fields.getUnescaped(2);
+			String collectionName = fields.getUnescaped(3);
+			String collectionDesc = fields.getUnescaped(4);
 			
 			// calling singleton instance of CollectionService
 			CollectionService cService = CollectionServiceImpl.getInstance();
@@ -160,22 +166,22 @@ public class CollectionImporter {
 	 * Processes the 'add_collection_content' command from the importer.
 	 * Validates input data and calls CollectionService addContent method
 	 * @param adminGuid used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws CollectionImportException if invalid input if passed
 	 * @throws CollectableChildException if exception occurs while creating Collectable child
 	 * @throws CollectableValidationException if invalid action performed while modifying a Collectable object
 	 * @throws AccessDeniedException 
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void addCollectionContent(UUID adminGuid, String[] splitString) throws CollectionImportException, CollectableChildException, CollectableValidationException, AccessDeniedException, InvalidAccessTokenException {
+	private void addCollectionContent(UUID adminGuid, CsvTokenizer fields) throws CollectionImportException, CollectableChildException, CollectableValidationException, AccessDeniedException, InvalidAccessTokenException {
 		// when line is parsed we should only have 4 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==4){
+		if(fields.getFieldCount()==4){
 					
 			// removing any escape characters from inputs
-			String parentCollectionId = splitString[1].trim().replaceAll("\\\\", "");
-			String contentType = splitString[2].trim().replaceAll("\\\\", "");
-			String childContentId = splitString[3].trim().replaceAll("\\\\", "");
+			String parentCollectionId = fields.getUnescaped(1);
+			String contentType = fields.getUnescaped(2);
+			String childContentId = fields.getUnescaped(3);
 			
 			// calling singleton instance of CollectionService
 			CollectionService cService = CollectionServiceImpl.getInstance();
@@ -195,17 +201,17 @@ public class CollectionImporter {
 	 * Processes the 'search_collection' command from the importer.
 	 * Validates input data and calls CollectionService searchCollection method
 	 * @param authId used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws CollectionImportException if invalid input if passed
 	 */
-	private void searchCollection(String[] splitString) throws CollectionImportException {
+	private void searchCollection(CsvTokenizer fields) throws CollectionImportException {
 		// calling singleton instance of CollectionService
 		CollectionService cService = CollectionServiceImpl.getInstance();
 		//SearchCriteria searchTerms = new SearchCriteria();
 		String searchText = "";
-		if(splitString.length>1){
+		if(fields.getFieldCount()>1){
 			// removing any escape characters from inputs
-			searchText = splitString[1].trim().replaceAll("\\\\", "");	
+			searchText = fields.getUnescaped(1);	
 		}
 		
 		List<ProductCollection> resultList = cService.searchCollection(searchText);
@@ -246,25 +252,25 @@ public class CollectionImporter {
 	 * Processes the 'set_dynamic_criteria' command from the importer.
 	 * Validates input data and calls CollectionService setDynamicCollectionCriteria method
 	 * @param adminGuid used to validate the user
-	 * @param splitString strings from parsed line of csv file 
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws CollectionImportException if invalid input if passed
 	 * @throws CollectableValidationException if invalid action performed while modifying a Collectable object
 	 * @throws AccessDeniedException 
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void setDynamicCriteria(UUID adminGuid, String[] splitString) throws CollectionImportException, CollectableValidationException, AccessDeniedException, InvalidAccessTokenException {
+	private void setDynamicCriteria(UUID adminGuid, CsvTokenizer fields) throws CollectionImportException, CollectableValidationException, AccessDeniedException, InvalidAccessTokenException {
 		// when line is parsed we should only have 4 variables,
 		// if we have more/less the line is not in the correct format
-		if(splitString.length==9 || splitString.length==10){
+		if(fields.getFieldCount()==9 || fields.getFieldCount()==10){
 			
-			String collectionId = splitString[1].trim().replaceAll("\\\\", "");
-			String textSearch = splitString[3].trim().replaceAll("\\\\", "");
-			String countryCode = splitString[7].trim().replaceAll("\\\\", "");
-			String deviceId = splitString[8].trim().replaceAll("\\\\", "");
+			String collectionId = fields.getUnescaped(1);
+			String textSearch = fields.getUnescaped(3);
+			String countryCode = fields.getUnescaped(7);
+			String deviceId = fields.getUnescaped(8);
 			
 			// parsing minimumRating from input
 			// defaults to 0
-			String ratingStr = splitString[4].trim();
+			String ratingStr = fields.getTrimmed(4);
 			int minimumRating = 0;	// default minRating
 			try{
 				if(ratingStr!=null && !ratingStr.equals("")){
@@ -279,7 +285,7 @@ public class CollectionImporter {
 			
 			// parsing price from input
 			// defaults to 0/free
-			String priceStr = splitString[5].trim();
+			String priceStr = fields.getTrimmed(5);
 			float maxPrice = 999999999;	// default maxPrice
 			try{
 				if(priceStr!=null && !priceStr.equals("")){
@@ -294,7 +300,7 @@ public class CollectionImporter {
 			}
 
 			// splitting categories on pipe delimiter
-			String[] splitCategories = splitString[2].trim().split("\\|");
+			String[] splitCategories = fields.getSubFields(2);
 			Set<String> categories = new HashSet<String>();
 			for (String category : splitCategories) {
 				if(!category.toLowerCase().equals("")){
@@ -303,7 +309,7 @@ public class CollectionImporter {
 			}
 			
 			// splitting languages on pipe delimiter
-			String[] splitLanguages = splitString[6].trim().split("\\|");
+			String[] splitLanguages = fields.getSubFields(6);
 			Set<String> languages = new HashSet<String>();
 			for (String language : splitLanguages) {
 				if(!language.toLowerCase().equals("")){
@@ -312,9 +318,9 @@ public class CollectionImporter {
 			}
 			
 			Set<String> contentTypes = new HashSet<String>();
-			if(splitString.length==10){
+			if(fields.getFieldCount()==10){
 				// splitting contentTypes on pipe delimiter
-				String[] splitContentTypes = splitString[9].trim().split("\\|");
+				String[] splitContentTypes = fields.getSubFields(9);
 				for (String contentType : splitContentTypes) {
 					if(!contentType.toLowerCase().equals("")){
 						contentTypes.add(contentType);
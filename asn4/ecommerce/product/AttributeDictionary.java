@@ -0,0 +1,89 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The AttributeDictionary class encodes the values of a product attribute, such as the categories or
+ * language codes, as dense integer ids. Each distinct value is assigned the next id the first time it is
+ * seen, and a single shared String instance is kept for it, so the copies read from each line of an
+ * import can be replaced by the shared one. Lookups are lock free, assigning a new id is synchronized.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class AttributeDictionary {
+
+	// returned by lookup for a value not in the dictionary
+	static final int UNKNOWN = -1;
+
+	// attribute value -> id
+	private final Map<String, Integer> ids;
+	// id -> attribute value
+	private final List<String> values;
+
+	/**
+	 * Constructor for an empty AttributeDictionary
+	 */
+	AttributeDictionary() {
+		this.ids = new ConcurrentHashMap<String, Integer>();
+		this.values = new ArrayList<String>();
+	}
+
+	/**
+	 * Returns the id of a value, assigning the next id if the value is not in the dictionary.
+	 * @param value attribute value
+	 * @return id of the value
+	 */
+	int encode(String value) {
+		Integer id = ids.get(value);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = ids.get(value);
+			if (id == null) {
+				id = values.size();
+				values.add(value);
+				ids.put(value, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * @param value attribute value
+	 * @return id of the value, or UNKNOWN if it is not in the dictionary
+	 */
+	int lookup(String value) {
+		Integer id = ids.get(value);
+		return (id != null) ? id : UNKNOWN;
+	}
+
+	/**
+	 * @param id id of a value
+	 * @return the value with the id
+	 */
+	synchronized String decode(int id) {
+		return values.get(id);
+	}
+
+	/**
+	 * Returns the shared instance of a value, adding it to the dictionary if needed.
+	 * @param value attribute value
+	 * @return equal String held by the dictionary
+	 */
+	String intern(String value) {
+		return decode(encode(value));
+	}
+
+	/**
+	 * @return number of distinct values in the dictionary
+	 */
+	synchronized int size() {
+		return values.size();
+	}
+
+}
@@ -0,0 +1,158 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The AttributeIndex class maps each value of a product attribute (a category, language code,
+ * countryId, deviceId or content type) to the bitmap of the products having that value.
+ * The values are encoded as dense ids by a dictionary, the bitmaps are held in a list by id, and
+ * query values are translated to ids once per query so evaluating a query compares no strings.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class AttributeIndex {
+
+	// attribute value <-> id
+	private AttributeDictionary dictionary;
+	// id -> bitmap of product ordinals
+	private List<ProductBitmap> valueIndex;
+	// ids whose bitmap has been copied from the base index, null if the index shares no bitmaps
+	private BitSet copiedIds;
+
+	/**
+	 * Constructor for an empty AttributeIndex
+	 */
+	AttributeIndex() {
+		this.dictionary = new AttributeDictionary();
+		this.valueIndex = new ArrayList<ProductBitmap>();
+		this.copiedIds = null;
+	}
+
+	/**
+	 * Constructor for an AttributeIndex holding the same products as a base index, which products
+	 * with higher ordinals can be added to without modifying the base. The dictionary is shared,
+	 * each bitmap is only copied the first time a product is added to it.
+	 * @param base the index to copy
+	 */
+	AttributeIndex(AttributeIndex base) {
+		this.dictionary = base.dictionary;
+		this.valueIndex = new ArrayList<ProductBitmap>(base.valueIndex);
+		this.copiedIds = new BitSet();
+	}
+
+	/**
+	 * Records that the product with the ordinal has the attribute value.
+	 * @param value attribute value
+	 * @param ordinal the product ordinal
+	 * @return id of the value
+	 */
+	int add(String value, int ordinal) {
+		int id = dictionary.encode(value);
+		if (valueIndex.size() <= id) {
+			// new bitmaps are not shared with the base index
+			while (valueIndex.size() <= id) {
+				if (copiedIds != null) {
+					copiedIds.set(valueIndex.size());
+				}
+				valueIndex.add(new ProductBitmap());
+			}
+		} else if (copiedIds != null && !copiedIds.get(id)) {
+			valueIndex.set(id, valueIndex.get(id).copyForAppend());
+			copiedIds.set(id);
+		}
+		valueIndex.get(id).add(ordinal);
+		return id;
+	}
+
+	/**
+	 * @return the dictionary of the attribute values
+	 */
+	AttributeDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return number of values in the index, the ids of values added to later versions of the index are higher
+	 */
+	int getValueCount() {
+		return valueIndex.size();
+	}
+
+	/**
+	 * Translates query values to ids, values no product has are left out.
+	 * @param values attribute values
+	 * @return sorted ids of the values in the index
+	 */
+	int[] encode(Set<String> values) {
+		int[] ids = new int[values.size()];
+		int count = 0;
+		for (String value : values) {
+			int id = dictionary.lookup(value);
+			if (id != AttributeDictionary.UNKNOWN && id < valueIndex.size()) {
+				ids[count++] = id;
+			}
+		}
+		ids = Arrays.copyOf(ids, count);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * @param id id of an attribute value
+	 * @return bitmap of the products with the value, which must not be modified
+	 */
+	ProductBitmap get(int id) {
+		return valueIndex.get(id);
+	}
+
+	/**
+	 * @param ids ids of attribute values
+	 * @return bitmap of the products with any of the values, which must not be modified
+	 */
+	ProductBitmap getAny(int[] ids) {
+		if (ids.length == 1) {
+			return valueIndex.get(ids[0]);
+		}
+		ProductBitmap union = new ProductBitmap();
+		for (int id : ids) {
+			union = union.or(valueIndex.get(id));
+		}
+		return union;
+	}
+
+	/**
+	 * @param ids ids of attribute values
+	 * @return sum of the number of products with each of the values
+	 */
+	int countAny(int[] ids) {
+		int count = 0;
+		for (int id : ids) {
+			count += valueIndex.get(id).getCardinality();
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the matching products having each attribute value, by intersecting the bitmap of each
+	 * value with the matches.
+	 * @param matches bitmap of the matching products
+	 * @param counts attribute value -> count, to add the non zero counts to
+	 */
+	void countMatches(ProductBitmap matches, Map<String, Integer> counts) {
+		for (int id = 0; id < valueIndex.size(); id++) {
+			int count = matches.andCardinality(valueIndex.get(id));
+			if (count > 0) {
+				String value = dictionary.decode(id);
+				Integer previous = counts.get(value);
+				counts.put(value, (previous == null) ? count : previous + count);
+			}
+		}
+	}
+
+}
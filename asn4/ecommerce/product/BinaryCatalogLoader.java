@@ -0,0 +1,228 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import cscie97.asn4.ecommerce.authentication.AccessDeniedException;
+import cscie97.asn4.ecommerce.authentication.InvalidAccessTokenException;
+
+/**
+ * The BinaryCatalogLoader class loads a snapshot file written by the BinaryCatalogWriter into the
+ * ProductCatalog, in place of importing the country, device and product csv files.
+ * The file is memory mapped and its header and checksum checked before anything is added. The strings of
+ * the dictionary are decoded once and shared by every product referring to them, and the products are
+ * added in a single addProducts batch, so the indexes are built once.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public class BinaryCatalogLoader {
+
+	/**
+	 * Constructor for BinaryCatalogLoader
+	 */
+	public BinaryCatalogLoader() {
+	}
+
+	/**
+	 * Adds the countries, devices and products of a snapshot file to the ProductCatalog, as importing the
+	 * csv files they were first imported from would. The ids must not already exist in the catalog.
+	 * @param adminGuid the authGuid passed to validate user.
+	 * @param filename the name of the snapshot file
+	 * @throws ImportException if the file cannot be read, is not a valid snapshot, or holds an existing id
+	 * @throws AccessDeniedException 
+	 * @throws InvalidAccessTokenException 
+	 */
+	public void loadCatalog(UUID adminGuid, String filename) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			if (channel.size() < BinaryCatalogWriter.HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+				throw new ImportException("Invalid catalog snapshot", "", 0, filename, new Exception());
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			ByteBuffer body = checkHeader(mapped, filename);
+			addCatalog(adminGuid, body);
+		} catch (FileNotFoundException fnfe) {
+			throw new ImportException("File not found!", "", 0, filename, fnfe);
+		} catch (IOException ioe) {
+			throw new ImportException("Error reading file", "", 0, filename, ioe);
+		} catch (BufferUnderflowException bue) {
+			throw new ImportException("Invalid catalog snapshot", "", 0, filename, bue);
+		} catch (IndexOutOfBoundsException ioobe) {
+			// a reference outside of the dictionary or catalog lists
+			throw new ImportException("Invalid catalog snapshot", "", 0, filename, ioobe);
+		} catch (NegativeArraySizeException nase) {
+			throw new ImportException("Invalid catalog snapshot", "", 0, filename, nase);
+		} catch (ImportException ie) {
+			ie.setFilename(filename);
+			throw ie;
+		} finally {
+			// ensuring the closure the underlying file
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException ioe) {
+					// the snapshot was fully read or has already failed, nothing is lost
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the magic number, format version, length and checksum of a snapshot.
+	 * @return the body of the snapshot, positioned at its start
+	 * @throws ImportException if the snapshot is not valid
+	 */
+	private ByteBuffer checkHeader(ByteBuffer mapped, String filename) throws ImportException {
+		if (mapped.getInt() != BinaryCatalogWriter.MAGIC) {
+			throw new ImportException("Invalid catalog snapshot", "", 0, filename, new Exception());
+		}
+		if (mapped.getInt() != BinaryCatalogWriter.FORMAT_VERSION) {
+			throw new ImportException("Unsupported catalog snapshot version", "", 0, filename, new Exception());
+		}
+		long bodyLength = mapped.getLong();
+		long checksum = mapped.getLong();
+		if (bodyLength != mapped.remaining()) {
+			throw new ImportException("Truncated catalog snapshot", "", 0, filename, new Exception());
+		}
+		ByteBuffer body = mapped.slice();
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+		if (crc.getValue() != checksum) {
+			throw new ImportException("Catalog snapshot checksum mismatch", "", 0, filename, new Exception());
+		}
+		return body;
+	}
+
+	/**
+	 * Decodes the body of a snapshot and adds its countries, devices and products to the ProductCatalog.
+	 */
+	private void addCatalog(UUID adminGuid, ByteBuffer body) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+		ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+
+		// string dictionary
+		int stringCount = body.getInt();
+		int[] ends = readInts(body, stringCount);
+		String[] strings = new String[stringCount];
+		byte[] bytes = new byte[(stringCount == 0) ? 0 : ends[stringCount - 1]];
+		body.get(bytes);
+		int start = 0;
+		for (int i = 0; i < stringCount; i++) {
+			strings[i] = new String(bytes, start, ends[i] - start, StandardCharsets.UTF_8);
+			start = ends[i];
+		}
+
+		int countryCount = body.getInt();
+		int[] countryIds = readInts(body, countryCount);
+		int[] countryNames = readInts(body, countryCount);
+		List<Country> countries = new ArrayList<Country>(countryCount);
+		for (int i = 0; i < countryCount; i++) {
+			String countryId = decode(strings, countryIds[i]);
+			pCatalog.addCountry(adminGuid, countryId, decode(strings, countryNames[i]), body.get() != 0);
+			countries.add(pCatalog.getValidCountry(countryId));
+		}
+
+		int deviceCount = body.getInt();
+		int[] deviceIds = readInts(body, deviceCount);
+		int[] deviceNames = readInts(body, deviceCount);
+		int[] manufacturers = readInts(body, deviceCount);
+		List<Device> devices = new ArrayList<Device>(deviceCount);
+		for (int i = 0; i < deviceCount; i++) {
+			String deviceId = decode(strings, deviceIds[i]);
+			pCatalog.addDevice(adminGuid, deviceId, decode(strings, deviceNames[i]), decode(strings, manufacturers[i]));
+			devices.add(pCatalog.getValidDevice(deviceId));
+		}
+
+		int productCount = body.getInt();
+		byte[] contentTypes = new byte[productCount];
+		body.get(contentTypes);
+		int[] productIds = readInts(body, productCount);
+		int[] productNames = readInts(body, productCount);
+		int[] authors = readInts(body, productCount);
+		int[] descriptions = readInts(body, productCount);
+		int[] imageUrls = readInts(body, productCount);
+		byte[] ratings = new byte[productCount];
+		body.get(ratings);
+		float[] prices = readFloats(body, productCount);
+		float[] appSizes = readFloats(body, productCount);
+		int[] categoryEnds = readInts(body, productCount);
+		int[] languageEnds = readInts(body, productCount);
+		int[] countryEnds = readInts(body, productCount);
+		int[] deviceEnds = readInts(body, productCount);
+		int[] categoryRefs = readInts(body, body.getInt());
+		int[] languageRefs = readInts(body, body.getInt());
+		int[] productCountryRefs = readInts(body, body.getInt());
+		int[] productDeviceRefs = readInts(body, body.getInt());
+
+		List<Product> products = new ArrayList<Product>(productCount);
+		for (int i = 0; i < productCount; i++) {
+			Set<String> categories = new HashSet<String>();
+			for (int j = (i == 0) ? 0 : categoryEnds[i - 1]; j < categoryEnds[i]; j++) {
+				categories.add(decode(strings, categoryRefs[j]));
+			}
+			List<String> languages = new ArrayList<String>();
+			for (int j = (i == 0) ? 0 : languageEnds[i - 1]; j < languageEnds[i]; j++) {
+				languages.add(decode(strings, languageRefs[j]));
+			}
+			List<Country> productCountries = new ArrayList<Country>();
+			for (int j = (i == 0) ? 0 : countryEnds[i - 1]; j < countryEnds[i]; j++) {
+				productCountries.add(countries.get(productCountryRefs[j]));
+			}
+			List<Device> productDevices = new ArrayList<Device>();
+			for (int j = (i == 0) ? 0 : deviceEnds[i - 1]; j < deviceEnds[i]; j++) {
+				productDevices.add(devices.get(productDeviceRefs[j]));
+			}
+			String productId = decode(strings, productIds[i]);
+			String productName = decode(strings, productNames[i]);
+			String author = decode(strings, authors[i]);
+			String description = decode(strings, descriptions[i]);
+			String imageUrl = decode(strings, imageUrls[i]);
+			if (contentTypes[i] == BinaryCatalogWriter.APPLICATION) {
+				products.add(new Application(adminGuid, productId, productName, author, productDevices, categories, description,
+						ratings[i], prices[i], productCountries, languages, imageUrl, appSizes[i]));
+			} else if (contentTypes[i] == BinaryCatalogWriter.RINGTONE) {
+				products.add(new RingTone(adminGuid, productId, productName, author, productDevices, categories, description,
+						ratings[i], prices[i], productCountries, languages, imageUrl));
+			} else if (contentTypes[i] == BinaryCatalogWriter.WALLPAPER) {
+				products.add(new Wallpaper(adminGuid, productId, productName, author, productDevices, categories, description,
+						ratings[i], prices[i], productCountries, languages, imageUrl));
+			} else {
+				throw new ImportException("Invalid catalog snapshot: invalid contentType", "", 0, "", new Exception());
+			}
+		}
+		pCatalog.addProducts(adminGuid, products);
+	}
+
+	private static String decode(String[] strings, int ref) {
+		return (ref == BinaryCatalogWriter.NULL_STRING) ? null : strings[ref];
+	}
+
+	private static int[] readInts(ByteBuffer body, int count) {
+		int[] values = new int[count];
+		body.asIntBuffer().get(values);
+		body.position(body.position() + 4 * count);
+		return values;
+	}
+
+	private static float[] readFloats(ByteBuffer body, int count) {
+		float[] values = new float[count];
+		body.asFloatBuffer().get(values);
+		body.position(body.position() + 4 * count);
+		return values;
+	}
+
+}
@@ -0,0 +1,267 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The BinaryCatalogWriter class saves the countries, devices and products of the ProductCatalog to a binary
+ * snapshot file, which the BinaryCatalogLoader loads back far faster than the csv files can be imported.
+ * The file starts with a fixed size header: a magic number, the format version, the length of the body and
+ * the CRC32 checksum of the body. Every string of the catalog is held once in a dictionary at the start of
+ * the body, and referred to by its index. The products follow as columns of primitive values, the
+ * categories, languages, countries and devices of each product as slices of shared columns of references.
+ * All values are big-endian.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public class BinaryCatalogWriter {
+
+	static final int MAGIC = 0x43534341;	// "CSCA"
+	static final int FORMAT_VERSION = 1;
+	// magic, format version, body length and checksum
+	static final int HEADER_SIZE = 24;
+
+	// content type codes of the products
+	static final byte APPLICATION = 0;
+	static final byte RINGTONE = 1;
+	static final byte WALLPAPER = 2;
+
+	// reference of a null string
+	static final int NULL_STRING = -1;
+
+	// string -> index in the dictionary, in the order the strings were first met
+	private Map<String, Integer> dictionary;
+	private List<String> strings;
+
+	/**
+	 * Constructor for BinaryCatalogWriter
+	 */
+	public BinaryCatalogWriter() {
+	}
+
+	/**
+	 * Writes a snapshot of the ProductCatalog to a file, replacing any existing file.
+	 * The snapshot is written to a temporary file in the same directory, which is moved over the file once
+	 * complete, so a failed write leaves any existing snapshot as it was. Products added while the snapshot
+	 * is written are left out. Countries and devices should not be added while it is written, as they are
+	 * read from the catalog lists directly.
+	 * @param filename the name of the snapshot file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeCatalog(String filename) throws IOException {
+		ProductCatalogImpl catalog = (ProductCatalogImpl) ProductCatalogImpl.getInstance();
+		CatalogSnapshot snapshot = catalog.getSnapshot();
+		List<Country> countries = new ArrayList<Country>(catalog.getValidCountries());
+		List<Device> devices = new ArrayList<Device>(catalog.getValidDevices());
+		List<Product> products = new ArrayList<Product>(snapshot.getProductCount());
+		for (int ordinal = 0; ordinal < snapshot.getProductCount(); ordinal++) {
+			if (!snapshot.getRemoved().contains(ordinal)) {
+				products.add(snapshot.getProduct(ordinal));
+			}
+		}
+
+		dictionary = new HashMap<String, Integer>();
+		strings = new ArrayList<String>();
+		Map<String, Integer> countryRefs = new HashMap<String, Integer>();
+		Map<String, Integer> deviceRefs = new HashMap<String, Integer>();
+		for (Country country : countries) {
+			countryRefs.put(country.getCountryId(), countryRefs.size());
+		}
+		for (Device device : devices) {
+			deviceRefs.put(device.getDeviceId(), deviceRefs.size());
+		}
+
+		Path target = Paths.get(filename).toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+		FileOutputStream file = new FileOutputStream(temp.toFile());
+		boolean moved = false;
+		try {
+			// the header is written once the body length and checksum are known
+			file.write(new byte[HEADER_SIZE]);
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+			DataOutputStream body = new DataOutputStream(checked);
+
+			// encoding every string before writing the dictionary
+			int[][] countryColumns = new int[2][countries.size()];
+			for (int i = 0; i < countries.size(); i++) {
+				countryColumns[0][i] = encode(countries.get(i).getCountryId());
+				countryColumns[1][i] = encode(countries.get(i).getCountryName());
+			}
+			int[][] deviceColumns = new int[3][devices.size()];
+			for (int i = 0; i < devices.size(); i++) {
+				deviceColumns[0][i] = encode(devices.get(i).getDeviceId());
+				deviceColumns[1][i] = encode(devices.get(i).getDeviceName());
+				deviceColumns[2][i] = encode(devices.get(i).getManufacturer());
+			}
+			int[][] productColumns = new int[5][products.size()];
+			List<Integer> categoryRefs = new ArrayList<Integer>();
+			List<Integer> languageRefs = new ArrayList<Integer>();
+			List<Integer> productCountryRefs = new ArrayList<Integer>();
+			List<Integer> productDeviceRefs = new ArrayList<Integer>();
+			int[][] listEnds = new int[4][products.size()];
+			for (int i = 0; i < products.size(); i++) {
+				Product product = products.get(i);
+				productColumns[0][i] = encode(product.getProductId());
+				productColumns[1][i] = encode(product.getProductName());
+				productColumns[2][i] = encode(product.getAuthor());
+				productColumns[3][i] = encode(product.getDescription());
+				productColumns[4][i] = encode(product.getImageUrl());
+				listEnds[0][i] = encodeAll(product.getCategories(), categoryRefs);
+				listEnds[1][i] = encodeAll(product.getLanguages(), languageRefs);
+				for (Country country : product.getCountries()) {
+					productCountryRefs.add(getRef(countryRefs, country.getCountryId()));
+				}
+				listEnds[2][i] = productCountryRefs.size();
+				for (Device device : product.getDevices()) {
+					productDeviceRefs.add(getRef(deviceRefs, device.getDeviceId()));
+				}
+				listEnds[3][i] = productDeviceRefs.size();
+			}
+
+			// string dictionary: the end offset of each string, then the UTF-8 bytes of all strings
+			List<byte[]> encoded = new ArrayList<byte[]>(strings.size());
+			body.writeInt(strings.size());
+			int end = 0;
+			for (String string : strings) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				encoded.add(bytes);
+				end += bytes.length;
+				body.writeInt(end);
+			}
+			for (byte[] bytes : encoded) {
+				body.write(bytes);
+			}
+
+			body.writeInt(countries.size());
+			writeColumns(body, countryColumns);
+			for (Country country : countries) {
+				body.writeBoolean(country.isExportOpen());
+			}
+
+			body.writeInt(devices.size());
+			writeColumns(body, deviceColumns);
+
+			body.writeInt(products.size());
+			for (Product product : products) {
+				body.writeByte(getContentTypeCode(product));
+			}
+			writeColumns(body, productColumns);
+			for (Product product : products) {
+				body.writeByte(product.getRating());
+			}
+			for (Product product : products) {
+				body.writeFloat(product.getPrice());
+			}
+			for (Product product : products) {
+				body.writeFloat((product instanceof Application) ? ((Application) product).getAppSize() : 0);
+			}
+			writeColumns(body, listEnds);
+			writeList(body, categoryRefs);
+			writeList(body, languageRefs);
+			writeList(body, productCountryRefs);
+			writeList(body, productDeviceRefs);
+			body.flush();
+			if (body.size() == Integer.MAX_VALUE) {
+				// the loader maps the snapshot as a single buffer
+				throw new IOException("Catalog too large for a snapshot file");
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(body.size()).putLong(checked.getChecksum().getValue());
+			header.flip();
+			file.getChannel().write(header, 0);
+			file.close();
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			moved = true;
+		} finally {
+			dictionary = null;
+			strings = null;
+			file.close();
+			if (!moved) {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * @return index of a string in the dictionary, adding it if needed
+	 */
+	private int encode(String string) {
+		if (string == null) {
+			return NULL_STRING;
+		}
+		Integer ref = dictionary.get(string);
+		if (ref == null) {
+			ref = strings.size();
+			dictionary.put(string, ref);
+			strings.add(string);
+		}
+		return ref;
+	}
+
+	/**
+	 * Encodes each string of a collection onto the end of a column of references.
+	 * @return the new size of the column
+	 */
+	private int encodeAll(Collection<String> values, List<Integer> refs) {
+		for (String value : values) {
+			refs.add(encode(value));
+		}
+		return refs.size();
+	}
+
+	/**
+	 * @return the index of a country or device of a product in the catalog lists
+	 * @throws IOException if the catalog does not hold it
+	 */
+	private static int getRef(Map<String, Integer> refs, String id) throws IOException {
+		Integer ref = refs.get(id);
+		if (ref == null) {
+			throw new IOException("Product refers to unknown country or device " + id);
+		}
+		return ref;
+	}
+
+	private static byte getContentTypeCode(Product product) throws IOException {
+		if (product instanceof Application) {
+			return APPLICATION;
+		} else if (product instanceof RingTone) {
+			return RINGTONE;
+		} else if (product instanceof Wallpaper) {
+			return WALLPAPER;
+		}
+		throw new IOException("Unknown content type " + product.getClass().getName());
+	}
+
+	private static void writeColumns(DataOutputStream body, int[][] columns) throws IOException {
+		for (int[] column : columns) {
+			for (int value : column) {
+				body.writeInt(value);
+			}
+		}
+	}
+
+	private static void writeList(DataOutputStream body, List<Integer> refs) throws IOException {
+		body.writeInt(refs.size());
+		for (int ref : refs) {
+			body.writeInt(ref);
+		}
+	}
+
+}
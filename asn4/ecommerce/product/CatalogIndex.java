@@ -0,0 +1,341 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The CatalogIndex class holds the products of the ProductCatalog by ordinal, together with the
+ * indexes and statistics used to plan and evaluate queries. Each Product is assigned the next ordinal
+ * when added, the ordinal is its position in the rating and price columns and the value stored in
+ * the attribute and text index bitmaps.
+ * A CatalogIndex is not modified once it is in use by queries, products are added to the catalog by
+ * building a new index with withProducts, which shares all but the last containers of its bitmaps.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class CatalogIndex {
+
+	// number of power of 2 buckets in the price histogram, bucket 0 holds the free products
+	private static final int PRICE_BUCKETS = 40;
+	// exponent offset of the price buckets, bucket 1 starts at 2^-11 BitCoins
+	private static final int PRICE_BUCKET_OFFSET = 12;
+
+	// products by ordinal, the ordinal is the position the product was added at
+	private List<Product> productOrdinals;
+	// bitmap of every product ordinal
+	private ProductBitmap allProducts;
+	// attribute value -> bitmap of product ordinals, for each of the attribute filters
+	private AttributeIndex categoryIndex;
+	private AttributeIndex languageIndex;
+	private AttributeIndex countryIndex;
+	private AttributeIndex deviceIndex;
+	private AttributeIndex contentTypeIndex;
+	// trigram index over product name and description
+	private TextIndex textIndex;
+	// index of the words of product name and author, for typo tolerant search
+	private FuzzyTermIndex fuzzyTermIndex;
+	// term postings of product name and description, for relevance ranking
+	private RelevanceIndex relevanceIndex;
+	// rating and price columns by product ordinal, used for the numeric range filters
+	private byte[] ratingColumn;
+	private float[] priceColumn;
+	// bitmap of product ordinals for each rating, and the ordinals sorted by price
+	private ProductBitmap[] ratingIndex;
+	private SortedPriceIndex priceIndex;
+	// ordinals sorted by product name, for type-ahead completion
+	private NamePrefixIndex nameIndex;
+	// statistics used to estimate the selectivity of the rating and price filters
+	private int[] ratingCounts;
+	private int[] priceHistogram;
+	private float highestPrice;
+
+	/**
+	 * Constructor for an empty CatalogIndex
+	 */
+	CatalogIndex() {
+		productOrdinals = new ArrayList<Product>();
+		allProducts = new ProductBitmap();
+		categoryIndex = new AttributeIndex();
+		languageIndex = new AttributeIndex();
+		countryIndex = new AttributeIndex();
+		deviceIndex = new AttributeIndex();
+		contentTypeIndex = new AttributeIndex();
+		textIndex = new TextIndex();
+		fuzzyTermIndex = new FuzzyTermIndex();
+		relevanceIndex = new RelevanceIndex(this);
+		ratingColumn = new byte[16];
+		priceColumn = new float[16];
+		ratingIndex = new ProductBitmap[6];
+		for (int rating = 0; rating < ratingIndex.length; rating++) {
+			ratingIndex[rating] = new ProductBitmap();
+		}
+		priceIndex = new SortedPriceIndex(this);
+		nameIndex = new NamePrefixIndex(this);
+		ratingCounts = new int[6];
+		priceHistogram = new int[PRICE_BUCKETS];
+		highestPrice = 0;
+	}
+
+	/**
+	 * Constructor for a CatalogIndex holding the same products as a base index, which more products can
+	 * be added to without modifying the base. The columns and lists are copied, the bitmaps are shared
+	 * until a product is added to them.
+	 * @param base the index to copy
+	 */
+	private CatalogIndex(CatalogIndex base) {
+		productOrdinals = new ArrayList<Product>(base.productOrdinals);
+		allProducts = base.allProducts.copyForAppend();
+		categoryIndex = new AttributeIndex(base.categoryIndex);
+		languageIndex = new AttributeIndex(base.languageIndex);
+		countryIndex = new AttributeIndex(base.countryIndex);
+		deviceIndex = new AttributeIndex(base.deviceIndex);
+		contentTypeIndex = new AttributeIndex(base.contentTypeIndex);
+		textIndex = new TextIndex(base.textIndex);
+		fuzzyTermIndex = new FuzzyTermIndex(base.fuzzyTermIndex);
+		relevanceIndex = new RelevanceIndex(this, base.relevanceIndex);
+		ratingColumn = Arrays.copyOf(base.ratingColumn, base.ratingColumn.length);
+		priceColumn = Arrays.copyOf(base.priceColumn, base.priceColumn.length);
+		ratingIndex = new ProductBitmap[base.ratingIndex.length];
+		for (int rating = 0; rating < ratingIndex.length; rating++) {
+			ratingIndex[rating] = base.ratingIndex[rating].copyForAppend();
+		}
+		priceIndex = new SortedPriceIndex(this, base.priceIndex);
+		nameIndex = new NamePrefixIndex(this, base.nameIndex);
+		ratingCounts = Arrays.copyOf(base.ratingCounts, base.ratingCounts.length);
+		priceHistogram = Arrays.copyOf(base.priceHistogram, base.priceHistogram.length);
+		highestPrice = base.highestPrice;
+	}
+
+	/**
+	 * Builds a new index holding the products of this index followed by more products, this index is not modified.
+	 * @param products the products to add, in the order they are assigned ordinals
+	 * @return the new CatalogIndex
+	 */
+	CatalogIndex withProducts(List<Product> products) {
+		CatalogIndex index = new CatalogIndex(this);
+		for (Product product : products) {
+			index.addProduct(product);
+		}
+		// sorting the new ordinals now, so queries on the published index never wait for it
+		index.priceIndex.update();
+		index.nameIndex.update();
+		return index;
+	}
+
+	/**
+	 * Assigns the next ordinal to a product, adds it to the attribute and text indexes,
+	 * stores its rating and price in the columns and updates the statistics.
+	 * @param product the product being added to the catalog
+	 * @return the ordinal of the product
+	 */
+	int addProduct(Product product) {
+		int ordinal = productOrdinals.size();
+		productOrdinals.add(product);
+		allProducts.add(ordinal);
+		for (String category : product.getCategories()) {
+			categoryIndex.add(category, ordinal);
+		}
+		for (String language : product.getLanguages()) {
+			languageIndex.add(language, ordinal);
+		}
+		for (Country country : product.getCountries()) {
+			countryIndex.add(country.getCountryId(), ordinal);
+		}
+		for (Device device : product.getDevices()) {
+			deviceIndex.add(device.getDeviceId(), ordinal);
+		}
+		String contentType = getContentType(product);
+		if (contentType != null) {
+			contentTypeIndex.add(contentType, ordinal);
+		}
+		textIndex.addProduct(ordinal, product);
+		fuzzyTermIndex.addProduct(ordinal, product);
+		relevanceIndex.addProduct(ordinal, product);
+
+		if (ordinal == ratingColumn.length) {
+			ratingColumn = Arrays.copyOf(ratingColumn, ordinal * 2);
+			priceColumn = Arrays.copyOf(priceColumn, ordinal * 2);
+		}
+		ratingColumn[ordinal] = (byte) product.getRating();
+		priceColumn[ordinal] = product.getPrice();
+
+		int rating = Math.max(0, Math.min(5, product.getRating()));
+		ratingIndex[rating].add(ordinal);
+		ratingCounts[rating]++;
+		priceHistogram[priceBucket(product.getPrice())]++;
+		highestPrice = Math.max(highestPrice, product.getPrice());
+		return ordinal;
+	}
+
+	/**
+	 * @param ordinal the product ordinal
+	 * @return the product with the ordinal
+	 */
+	Product getProduct(int ordinal) {
+		return productOrdinals.get(ordinal);
+	}
+
+	/**
+	 * @return number of products in the index
+	 */
+	int getProductCount() {
+		return productOrdinals.size();
+	}
+
+	/**
+	 * @return bitmap of every product ordinal, which must not be modified
+	 */
+	ProductBitmap getAllProducts() {
+		return allProducts;
+	}
+
+	AttributeIndex getCategoryIndex() {
+		return categoryIndex;
+	}
+
+	AttributeIndex getLanguageIndex() {
+		return languageIndex;
+	}
+
+	AttributeIndex getCountryIndex() {
+		return countryIndex;
+	}
+
+	AttributeIndex getDeviceIndex() {
+		return deviceIndex;
+	}
+
+	AttributeIndex getContentTypeIndex() {
+		return contentTypeIndex;
+	}
+
+	TextIndex getTextIndex() {
+		return textIndex;
+	}
+
+	FuzzyTermIndex getFuzzyTermIndex() {
+		return fuzzyTermIndex;
+	}
+
+	RelevanceIndex getRelevanceIndex() {
+		return relevanceIndex;
+	}
+
+	/**
+	 * @return the rating column, only the first getProductCount() entries are valid
+	 */
+	byte[] getRatingColumn() {
+		return ratingColumn;
+	}
+
+	/**
+	 * @return the price column, only the first getProductCount() entries are valid
+	 */
+	float[] getPriceColumn() {
+		return priceColumn;
+	}
+
+	/**
+	 * @param rating a rating between 0 and 5
+	 * @return bitmap of the products with the rating, which must not be modified
+	 */
+	ProductBitmap getRatingIndex(int rating) {
+		return ratingIndex[rating];
+	}
+
+	/**
+	 * @param minimumRating query rating minimum
+	 * @return new bitmap of the products with at least the rating
+	 */
+	ProductBitmap getRatingAtLeast(int minimumRating) {
+		ProductBitmap matches = new ProductBitmap();
+		for (int rating = Math.max(0, minimumRating); rating < ratingIndex.length; rating++) {
+			matches = matches.or(ratingIndex[rating]);
+		}
+		return matches;
+	}
+
+	/**
+	 * @return the product ordinals sorted by price
+	 */
+	SortedPriceIndex getPriceIndex() {
+		return priceIndex;
+	}
+
+	/**
+	 * @return the product ordinals sorted by name
+	 */
+	NamePrefixIndex getNameIndex() {
+		return nameIndex;
+	}
+
+	/**
+	 * @return highest price of any product in the index
+	 */
+	float getHighestPrice() {
+		return highestPrice;
+	}
+
+	/**
+	 * @param minimumRating query rating minimum
+	 * @return exact number of products with at least the rating
+	 */
+	int countRatingAtLeast(int minimumRating) {
+		int count = 0;
+		for (int rating = Math.max(0, minimumRating); rating < ratingCounts.length; rating++) {
+			count += ratingCounts[rating];
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates the number of products costing no more than the price, from the price histogram.
+	 * Buckets below the price are counted in full, the bucket holding the price is interpolated.
+	 * @param maxPrice query price maximum
+	 * @return estimated number of products
+	 */
+	int estimatePriceAtMost(float maxPrice) {
+		if (maxPrice < 0) {
+			return 0;
+		}
+		int bucket = priceBucket(maxPrice);
+		int count = 0;
+		for (int i = 0; i < bucket; i++) {
+			count += priceHistogram[i];
+		}
+		if (bucket == 0) {
+			return count + priceHistogram[0];
+		}
+		double lower = Math.scalb(1.0, bucket - PRICE_BUCKET_OFFSET);
+		double fraction = Math.min(1.0, (maxPrice - lower) / lower);
+		return count + (int) Math.round(priceHistogram[bucket] * fraction);
+	}
+
+	/**
+	 * Returns the content type name used in queries for a product.
+	 * @param product the product
+	 * @return "application", "ringtone", "wallpaper" or null for any other type
+	 */
+	static String getContentType(Product product) {
+		if (product instanceof Application) {
+			return "application";
+		} else if (product instanceof RingTone) {
+			return "ringtone";
+		} else if (product instanceof Wallpaper) {
+			return "wallpaper";
+		}
+		return null;
+	}
+
+	// private utility method, bucket b > 0 holds prices in [2^(b-12), 2^(b-11))
+	private static int priceBucket(float price) {
+		if (!(price > 0)) {
+			return 0;
+		}
+		int bucket = Math.getExponent(price) + PRICE_BUCKET_OFFSET;
+		return Math.max(1, Math.min(PRICE_BUCKETS - 1, bucket));
+	}
+
+}
@@ -0,0 +1,289 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The CatalogSnapshot class is an immutable version of the products of the ProductCatalog, which queries
+ * are evaluated against. A snapshot is the CatalogIndex of the products indexed so far plus a tail of the
+ * products added since, which are checked one by one until the next index is built. Products of the tail
+ * follow the indexed products in ordinal order.
+ * A new snapshot is published by the writer on every change and read by queries without locking, a query
+ * sees the same products from start to end however many are added meanwhile.
+ * Indexes are only ever appended to, so a product which is replaced or removed keeps its ordinal and is
+ * recorded in the removed bitmap instead, which is left out of every query result.
+ *
+ * @author Frank O'Connor
+ *
+ */
+final class CatalogSnapshot {
+
+	private final CatalogIndex index;
+	private final QueryPlanner planner;
+	// the tail is shared with later snapshots, which only append to it, only the first tailCount are in this snapshot
+	private final Product[] tail;
+	private final int tailCount;
+	// ordinals of the replaced and removed products, which no query returns
+	private final ProductBitmap removed;
+	private final long version;
+
+	/**
+	 * Constructor for CatalogSnapshot
+	 * @param index index of the products, which must not be modified
+	 * @param planner planner of queries on the index
+	 * @param tail products added after the index was built
+	 * @param tailCount number of products of the tail in the snapshot
+	 * @param removed ordinals of the replaced and removed products, which must not be modified
+	 * @param version catalog version of the snapshot
+	 */
+	CatalogSnapshot(CatalogIndex index, QueryPlanner planner, Product[] tail, int tailCount, ProductBitmap removed, long version) {
+		this.index = index;
+		this.planner = planner;
+		this.tail = tail;
+		this.tailCount = tailCount;
+		this.removed = removed;
+		this.version = version;
+	}
+
+	CatalogIndex getIndex() {
+		return index;
+	}
+
+	QueryPlanner getPlanner() {
+		return planner;
+	}
+
+	Product[] getTail() {
+		return tail;
+	}
+
+	int getTailCount() {
+		return tailCount;
+	}
+
+	ProductBitmap getRemoved() {
+		return removed;
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return number of products in the index, the tail starts at this ordinal
+	 */
+	int getIndexedCount() {
+		return index.getProductCount();
+	}
+
+	/**
+	 * @return number of ordinals in the snapshot, including those of the removed products
+	 */
+	int getProductCount() {
+		return index.getProductCount() + tailCount;
+	}
+
+	/**
+	 * @param ordinal the product ordinal
+	 * @return the product with the ordinal, from the index or the tail
+	 */
+	Product getProduct(int ordinal) {
+		int indexedCount = index.getProductCount();
+		return (ordinal < indexedCount) ? index.getProduct(ordinal) : tail[ordinal - indexedCount];
+	}
+
+	/**
+	 * @param ordinal the product ordinal
+	 * @return rating of the product
+	 */
+	int getRating(int ordinal) {
+		int indexedCount = index.getProductCount();
+		return (ordinal < indexedCount) ? index.getRatingColumn()[ordinal] : tail[ordinal - indexedCount].getRating();
+	}
+
+	/**
+	 * @param ordinal the product ordinal
+	 * @return price of the product
+	 */
+	float getPrice(int ordinal) {
+		int indexedCount = index.getProductCount();
+		return (ordinal < indexedCount) ? index.getPriceColumn()[ordinal] : tail[ordinal - indexedCount].getPrice();
+	}
+
+	/**
+	 * Checks the products of the tail within a range of ordinals against a query.
+	 * @param query the query criteria
+	 * @param fromOrdinal first ordinal to check
+	 * @param toOrdinal ordinal after the last to check
+	 * @return new bitmap of the matching ordinals
+	 */
+	ProductBitmap matchTail(ProductQuery query, int fromOrdinal, int toOrdinal) {
+		ProductBitmap matches = new ProductBitmap();
+		int indexedCount = index.getProductCount();
+		int end = Math.min(toOrdinal, indexedCount + tailCount);
+		for (int ordinal = Math.max(fromOrdinal, indexedCount); ordinal < end; ordinal++) {
+			if (query.matches(tail[ordinal - indexedCount])) {
+				matches.add(ordinal);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Adds the matching products of the tail to the matches of the indexed products, leaving out the removed products.
+	 * @param query the query criteria
+	 * @param indexedMatches bitmap of the matching indexed products
+	 * @return bitmap of all matching products, which must not be modified
+	 */
+	ProductBitmap withTailMatches(ProductQuery query, ProductBitmap indexedMatches) {
+		if (tailCount == 0) {
+			return withoutRemoved(indexedMatches);
+		}
+		ProductBitmap tailMatches = matchTail(query, index.getProductCount(), getProductCount());
+		return withoutRemoved(tailMatches.isEmpty() ? indexedMatches : indexedMatches.or(tailMatches));
+	}
+
+	/**
+	 * Leaves the replaced and removed products out of matches.
+	 * @param matches bitmap of product ordinals, which is not modified
+	 * @return bitmap of the matches still in the catalog, which must not be modified
+	 */
+	ProductBitmap withoutRemoved(ProductBitmap matches) {
+		return removed.isEmpty() ? matches : matches.andNot(removed);
+	}
+
+	/**
+	 * Looks up the products of a bitmap.
+	 * @param matches bitmap of product ordinals
+	 * @return the products, in ordinal order
+	 */
+	List<Product> materialize(ProductBitmap matches) {
+		List<Product> products = new ArrayList<Product>(matches.getCardinality());
+		PrimitiveIterator.OfInt matchIter = matches.iterator();
+		while (matchIter.hasNext()) {
+			products.add(getProduct(matchIter.nextInt()));
+		}
+		return products;
+	}
+
+	/**
+	 * Finds the best rated products whose name starts with a prefix, ignoring case, from the name index
+	 * and the tail.
+	 * @param prefix start of the product name
+	 * @param limit maximum number of products to return
+	 * @return the products, best rated first, products with the same rating by name
+	 */
+	List<Product> completeProductName(String prefix, int limit) {
+		int[] indexedCompletions = index.getNameIndex().complete(prefix, limit, removed);
+		List<Integer> completions = new ArrayList<Integer>(indexedCompletions.length);
+		for (int ordinal : indexedCompletions) {
+			completions.add(ordinal);
+		}
+		if (tailCount > 0) {
+			int indexedCount = index.getProductCount();
+			for (int i = 0; i < tailCount; i++) {
+				if (NamePrefixIndex.hasPrefix(tail[i], prefix) && !removed.contains(indexedCount + i)) {
+					completions.add(indexedCount + i);
+				}
+			}
+			Collections.sort(completions, new NamePrefixIndex.CompletionComparator(this));
+		}
+		List<Product> products = new ArrayList<Product>();
+		for (int i = 0; i < completions.size() && i < limit; i++) {
+			products.add(getProduct(completions.get(i)));
+		}
+		return products;
+	}
+
+	/**
+	 * Ranks the products by the relevance of their name and description to a search text, from the
+	 * relevance index and the tail.
+	 * @param searchText the query text
+	 * @param filter products which may be returned, or null for every product
+	 * @param limit maximum number of products to return
+	 * @return the products containing any word of the search text, most relevant first
+	 */
+	List<Product> rankByRelevance(String searchText, ProductBitmap filter, int limit) {
+		List<String> queryTerms = FuzzyTermIndex.getTerms(searchText);
+		RelevanceIndex relevanceIndex = index.getRelevanceIndex();
+		if (filter == null && !removed.isEmpty()) {
+			filter = ProductBitmap.range(0, getProductCount()).andNot(removed);
+		}
+		PriorityQueue<RelevanceIndex.Match> best = relevanceIndex.search(queryTerms, filter, limit);
+		int indexedCount = index.getProductCount();
+		for (int i = 0; i < tailCount && limit > 0 && !queryTerms.isEmpty(); i++) {
+			if (filter == null || filter.contains(indexedCount + i)) {
+				double score = relevanceIndex.score(queryTerms, tail[i]);
+				if (score > 0) {
+					RelevanceIndex.offer(best, new RelevanceIndex.Match(indexedCount + i, score), limit);
+				}
+			}
+		}
+		// the heap holds the worst match first
+		Product[] products = new Product[best.size()];
+		for (int i = products.length - 1; i >= 0; i--) {
+			products[i] = getProduct(best.poll().ordinal);
+		}
+		return new ArrayList<Product>(Arrays.asList(products));
+	}
+
+	/**
+	 * Counts the facet values of the matching products in the tail, which are not in the attribute indexes.
+	 * Each product is counted once per value, however many times it lists the value.
+	 * @param matches bitmap of the matching products
+	 * @param categoryCounts category -> count
+	 * @param languageCounts language code -> count
+	 * @param countryCounts countryId -> count
+	 * @param contentTypeCounts content type -> count
+	 */
+	void countTailFacets(ProductBitmap matches, Map<String, Integer> categoryCounts, Map<String, Integer> languageCounts,
+			Map<String, Integer> countryCounts, Map<String, Integer> contentTypeCounts) {
+		if (tailCount == 0) {
+			return;
+		}
+		int indexedCount = index.getProductCount();
+		PrimitiveIterator.OfInt matchIter = matches.and(ProductBitmap.range(indexedCount, getProductCount())).iterator();
+		while (matchIter.hasNext()) {
+			Product product = tail[matchIter.nextInt() - indexedCount];
+			for (String category : new HashSet<String>(product.getCategories())) {
+				increment(categoryCounts, category);
+			}
+			for (String language : new HashSet<String>(product.getLanguages())) {
+				increment(languageCounts, language);
+			}
+			Set<String> countryIds = new HashSet<String>();
+			for (Country country : product.getCountries()) {
+				countryIds.add(country.getCountryId());
+			}
+			for (String countryId : countryIds) {
+				increment(countryCounts, countryId);
+			}
+			String contentType = CatalogIndex.getContentType(product);
+			if (contentType != null) {
+				increment(contentTypeCounts, contentType);
+			}
+		}
+	}
+
+	/**
+	 * @param newVersion catalog version
+	 * @return snapshot of the same products with another version
+	 */
+	CatalogSnapshot withVersion(long newVersion) {
+		return new CatalogSnapshot(index, planner, tail, tailCount, removed, newVersion);
+	}
+
+	// private utility method
+	private static void increment(Map<String, Integer> counts, String value) {
+		Integer previous = counts.get(value);
+		counts.put(value, (previous == null) ? 1 : previous + 1);
+	}
+
+}
@@ -0,0 +1,66 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The FacetedProductResult class holds the results of a faceted ProductCatalog query, the matching
+ * products together with the number of them having each category, language, country and content type.
+ * Values no matching product has are left out of the counts.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public class FacetedProductResult {
+
+	private List<Product> products;
+	private Map<String, Integer> categoryCounts;
+	private Map<String, Integer> languageCounts;
+	private Map<String, Integer> countryCounts;
+	private Map<String, Integer> contentTypeCounts;
+
+	/**
+	 * Constructor for FacetedProductResult
+	 * @param products the matching products
+	 * @param categoryCounts category -> number of matching products
+	 * @param languageCounts language code -> number of matching products
+	 * @param countryCounts countryId -> number of matching products
+	 * @param contentTypeCounts content type -> number of matching products
+	 */
+	public FacetedProductResult(List<Product> products, Map<String, Integer> categoryCounts, Map<String, Integer> languageCounts,
+			Map<String, Integer> countryCounts, Map<String, Integer> contentTypeCounts) {
+		this.products = products;
+		this.categoryCounts = categoryCounts;
+		this.languageCounts = languageCounts;
+		this.countryCounts = countryCounts;
+		this.contentTypeCounts = contentTypeCounts;
+	}
+
+	public List<Product> getProducts() {
+		return products;
+	}
+
+	public Map<String, Integer> getCategoryCounts() {
+		return categoryCounts;
+	}
+
+	public Map<String, Integer> getLanguageCounts() {
+		return languageCounts;
+	}
+
+	public Map<String, Integer> getCountryCounts() {
+		return countryCounts;
+	}
+
+	public Map<String, Integer> getContentTypeCounts() {
+		return contentTypeCounts;
+	}
+
+	@Override
+	public String toString() {
+		return "FacetedProductResult [products=" + products.size() + ", categoryCounts=" + categoryCounts
+				+ ", languageCounts=" + languageCounts + ", countryCounts=" + countryCounts
+				+ ", contentTypeCounts=" + contentTypeCounts + "]";
+	}
+
+}
@@ -0,0 +1,359 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The FuzzyTermIndex class finds the products whose name or author has a word within a small edit distance
+ * of each word of the search text, so misspelled searches still find the product.
+ * The lower case words (terms) of the name and author are held in an AttributeIndex mapping each term to its
+ * products. To find the terms close to a query term without comparing it with every term, each term is also
+ * indexed under every string obtained by deleting up to MAX_EDITS of its characters: two terms within that
+ * edit distance always share such a deletion, so only the terms sharing a deletion with the query term
+ * are compared with it. Transposed letters count as a single edit, as in "teh" for "the".
+ *
+ * @author Frank O'Connor
+ *
+ */
+class FuzzyTermIndex {
+
+	// highest edit distance supported by the deletion index
+	static final int MAX_EDITS = 2;
+	// terms up to this length must match exactly, up to the next one within a single edit
+	private static final int EXACT_TERM_LENGTH = 2;
+	private static final int ONE_EDIT_TERM_LENGTH = 5;
+
+	// term -> bitmap of the products with the term in their name or author
+	private AttributeIndex termIndex;
+	// deletions of the terms, shared by every version of the index as the term ids are
+	private final DeletionIndex deletionIndex;
+
+	/**
+	 * Constructor for an empty FuzzyTermIndex
+	 */
+	FuzzyTermIndex() {
+		this.termIndex = new AttributeIndex();
+		this.deletionIndex = new DeletionIndex();
+	}
+
+	/**
+	 * Constructor for a FuzzyTermIndex holding the same products as a base index, which products with
+	 * higher ordinals can be added to without modifying the base.
+	 * @param base the index to copy
+	 */
+	FuzzyTermIndex(FuzzyTermIndex base) {
+		this.termIndex = new AttributeIndex(base.termIndex);
+		this.deletionIndex = base.deletionIndex;
+	}
+
+	/**
+	 * Indexes the terms of the name and author of a product under its ordinal.
+	 * @param ordinal the product ordinal
+	 * @param product the product to index
+	 */
+	void addProduct(int ordinal, Product product) {
+		for (String term : getProductTerms(product)) {
+			int id = termIndex.add(term, ordinal);
+			deletionIndex.addTerms(termIndex.getDictionary(), id);
+		}
+	}
+
+	/**
+	 * Returns the products with a term close to each term of the search text.
+	 * @param searchText the query text
+	 * @param maxEdits highest edit distance of a match, lowered for short terms
+	 * @return bitmap of the matching products, which must not be modified
+	 */
+	ProductBitmap getMatches(String searchText, int maxEdits) {
+		List<String> queryTerms = getTerms(searchText);
+		if (queryTerms.isEmpty()) {
+			return new ProductBitmap();
+		}
+		ProductBitmap matches = null;
+		for (String queryTerm : queryTerms) {
+			int[] termIds = findTerms(queryTerm, maxEdits);
+			ProductBitmap termMatches = (termIds.length == 0) ? new ProductBitmap() : termIndex.getAny(termIds);
+			matches = (matches == null) ? termMatches : matches.and(termMatches);
+			if (matches.isEmpty()) {
+				break;
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Estimates the number of products matching the search text, from its least common term.
+	 * @param searchText the query text
+	 * @param maxEdits highest edit distance of a match
+	 * @return upper bound of the number of matching products
+	 */
+	int estimateMatches(String searchText, int maxEdits) {
+		int estimate = Integer.MAX_VALUE;
+		for (String queryTerm : getTerms(searchText)) {
+			estimate = Math.min(estimate, termIndex.countAny(findTerms(queryTerm, maxEdits)));
+		}
+		return (estimate == Integer.MAX_VALUE) ? 0 : estimate;
+	}
+
+	/**
+	 * Checks a single product against the search text, as for products not yet in the index.
+	 * @param product the product to check
+	 * @param searchText the query text
+	 * @param maxEdits highest edit distance of a match
+	 * @return true if the product has a term close to each term of the search text
+	 */
+	static boolean matches(Product product, String searchText, int maxEdits) {
+		List<String> queryTerms = getTerms(searchText);
+		if (queryTerms.isEmpty()) {
+			return false;
+		}
+		Set<String> productTerms = getProductTerms(product);
+		for (String queryTerm : queryTerms) {
+			int edits = getAllowedEdits(queryTerm, maxEdits);
+			boolean found = false;
+			for (String productTerm : productTerms) {
+				if (isWithinDistance(queryTerm, productTerm, edits)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param queryTerm a term of the search text
+	 * @param maxEdits highest edit distance of a match
+	 * @return sorted ids of the terms of this index close to the query term
+	 */
+	private int[] findTerms(String queryTerm, int maxEdits) {
+		int edits = getAllowedEdits(queryTerm, maxEdits);
+		int termCount = termIndex.getValueCount();
+		AttributeDictionary dictionary = termIndex.getDictionary();
+		int[] candidateIds = deletionIndex.getTerms(getDeletions(queryTerm, edits));
+		int[] termIds = new int[candidateIds.length];
+		int count = 0;
+		for (int id : candidateIds) {
+			// terms added to later versions of the index are left out
+			if (id < termCount && isWithinDistance(queryTerm, dictionary.decode(id), edits)) {
+				termIds[count++] = id;
+			}
+		}
+		return Arrays.copyOf(termIds, count);
+	}
+
+	/**
+	 * Short terms are allowed fewer edits, so a two letter word does not match every other one.
+	 * @return edit distance allowed for the query term
+	 */
+	private static int getAllowedEdits(String queryTerm, int maxEdits) {
+		if (queryTerm.length() <= EXACT_TERM_LENGTH) {
+			return 0;
+		}
+		if (queryTerm.length() <= ONE_EDIT_TERM_LENGTH) {
+			return Math.min(1, maxEdits);
+		}
+		return Math.min(MAX_EDITS, maxEdits);
+	}
+
+	/**
+	 * @return the distinct terms of the name and author of a product
+	 */
+	private static Set<String> getProductTerms(Product product) {
+		Set<String> terms = new HashSet<String>();
+		if (product.getProductName() != null) {
+			terms.addAll(getTerms(product.getProductName()));
+		}
+		if (product.getAuthor() != null) {
+			terms.addAll(getTerms(product.getAuthor()));
+		}
+		return terms;
+	}
+
+	/**
+	 * Splits text into lower case terms at every character which is not a letter or digit.
+	 * @param text the text to split
+	 * @return the terms, in order
+	 */
+	static List<String> getTerms(String text) {
+		List<String> terms = new ArrayList<String>();
+		String lowerCaseText = text.toLowerCase();
+		int start = -1;
+		for (int i = 0; i <= lowerCaseText.length(); i++) {
+			boolean inTerm = i < lowerCaseText.length() && Character.isLetterOrDigit(lowerCaseText.charAt(i));
+			if (inTerm && start < 0) {
+				start = i;
+			} else if (!inTerm && start >= 0) {
+				terms.add(lowerCaseText.substring(start, i));
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * @return the term and every string obtained by deleting up to edits of its characters
+	 */
+	private static Set<String> getDeletions(String term, int edits) {
+		Set<String> deletions = new HashSet<String>();
+		deletions.add(term);
+		Set<String> previous = deletions;
+		for (int edit = 0; edit < edits; edit++) {
+			Set<String> next = new HashSet<String>();
+			for (String variant : previous) {
+				for (int i = 0; i < variant.length(); i++) {
+					next.add(variant.substring(0, i) + variant.substring(i + 1));
+				}
+			}
+			deletions.addAll(next);
+			previous = next;
+		}
+		return deletions;
+	}
+
+	/**
+	 * Checks whether the edit distance of two terms is at most edits, counting insertions, deletions,
+	 * substitutions and transpositions of adjacent characters (the optimal string alignment distance).
+	 * Only the diagonal band of the distance matrix within edits of the main diagonal is computed.
+	 */
+	static boolean isWithinDistance(String a, String b, int edits) {
+		if (Math.abs(a.length() - b.length()) > edits) {
+			return false;
+		}
+		if (edits == 0) {
+			return a.equals(b);
+		}
+		int outOfBand = edits + 1;
+		int[] beforePrevious = new int[b.length() + 1];
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++) {
+			previous[j] = (j <= edits) ? j : outOfBand;
+		}
+		int previousMinimum = 0;
+		for (int i = 1; i <= a.length(); i++) {
+			int from = Math.max(1, i - edits);
+			int to = Math.min(b.length(), i + edits);
+			current[0] = (i <= edits) ? i : outOfBand;
+			if (from > 1) {
+				current[from - 1] = outOfBand;
+			}
+			int rowMinimum = current[0];
+			for (int j = from; j <= to; j++) {
+				int distance = previous[j - 1] + ((a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1);
+				distance = Math.min(distance, previous[j] + 1);
+				distance = Math.min(distance, current[j - 1] + 1);
+				if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+					distance = Math.min(distance, beforePrevious[j - 2] + 1);
+				}
+				current[j] = Math.min(outOfBand, distance);
+				rowMinimum = Math.min(rowMinimum, current[j]);
+			}
+			if (to < b.length()) {
+				current[to + 1] = outOfBand;
+			}
+			if (rowMinimum > edits && previousMinimum > edits) {
+				// every later row is built from these two, so is at least as far
+				return false;
+			}
+			previousMinimum = rowMinimum;
+			int[] swap = beforePrevious;
+			beforePrevious = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[b.length()] <= edits;
+	}
+
+	/**
+	 * Maps each deletion of the terms of the dictionary to the ids of the terms it was obtained from.
+	 * The terms are indexed in id order as the dictionary assigns them, by one thread at a time, while
+	 * queries read the ids without locking.
+	 */
+	private static final class DeletionIndex {
+
+		// deletion -> term ids, an entry is published once it holds its first id
+		private final Map<String, TermIds> deletionTerms = new ConcurrentHashMap<String, TermIds>();
+		// number of dictionary terms indexed so far
+		private volatile int termCount = 0;
+
+		/**
+		 * Indexes the deletions of every term of the dictionary up to an id.
+		 */
+		void addTerms(AttributeDictionary dictionary, int lastId) {
+			if (lastId < termCount) {
+				// already indexed, as for most terms of a product
+				return;
+			}
+			synchronized (this) {
+				while (termCount <= lastId) {
+					for (String deletion : getDeletions(dictionary.decode(termCount), MAX_EDITS)) {
+						TermIds termIds = deletionTerms.get(deletion);
+						if (termIds == null) {
+							termIds = new TermIds();
+							termIds.append(termCount);
+							deletionTerms.put(deletion, termIds);
+						} else {
+							termIds.append(termCount);
+						}
+					}
+					termCount++;
+				}
+			}
+		}
+
+		/**
+		 * @return sorted ids of the terms with any of the deletions
+		 */
+		int[] getTerms(Set<String> deletions) {
+			Set<Integer> termIds = new HashSet<Integer>();
+			for (String deletion : deletions) {
+				TermIds ids = deletionTerms.get(deletion);
+				if (ids != null) {
+					// the count is read first, the ids up to it are in the array read after it
+					int size = ids.count;
+					int[] current = ids.ids;
+					for (int i = 0; i < size; i++) {
+						termIds.add(current[i]);
+					}
+				}
+			}
+			int[] sortedIds = new int[termIds.size()];
+			int count = 0;
+			for (Integer id : termIds) {
+				sortedIds[count++] = id;
+			}
+			Arrays.sort(sortedIds);
+			return sortedIds;
+		}
+	}
+
+	/**
+	 * The ids of the terms with a deletion, only appended to. An id is written before the count is
+	 * raised past it, and a grown array is published before the count, so readers never lock.
+	 */
+	private static final class TermIds {
+
+		private volatile int[] ids = new int[1];
+		private volatile int count = 0;
+
+		void append(int id) {
+			int[] current = ids;
+			if (count == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+				ids = current;
+			}
+			current[count] = id;
+			count = count + 1;
+		}
+	}
+
+}
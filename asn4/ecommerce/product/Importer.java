@@ -1,32 +1,71 @@
 package cscie97.asn4.ecommerce.product;
 
+import java.io.CharArrayReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import cscie97.asn4.ecommerce.authentication.AccessDeniedException;
 import cscie97.asn4.ecommerce.authentication.InvalidAccessTokenException;
+import cscie97.asn4.ecommerce.util.CsvTokenizer;
 
 /**
  * The Importer class is responsible for reading csv input files with the expected format.
  * Importer class can import countries, devices and products into the ProductCatalog.
  * Each line of a csv file is parsed as either a country, device or product respectively.
+ * A product file resent with few changes can be imported with importProductDelta, which only parses
+ * and applies the lines which changed since the previous product import of the same Importer.
  * 
  * @author Frank O'Connor
  *
  */
 public class Importer {
 	
+	// size of the file chunks parsed by each task of importProductFileParallel, extended to the end of their last line
+	private static final long CHUNK_SIZE = 8L << 20;
+	
+	// number of product lines added to the ProductCatalog together by importFileData
+	private static final int BATCH_SIZE = 4096;
+	
+	// maximum number of chunks parsed at the same time by importProductFileParallel
+	private int parallelism;
+	
+	// productId -> fingerprint of the line the product was last imported from, by any product import of this Importer
+	private Map<String, Long> productFingerprints;
+	
 	/** 
 	 * Constructor class for Importer.
 	 */
 	public Importer(){
 		// constructor
+		this.parallelism = Runtime.getRuntime().availableProcessors();
+		this.productFingerprints = new HashMap<String, Long>();
+	}
+	
+	/**
+	 * Sets the maximum number of file chunks parsed at the same time by importProductFileParallel.
+	 * Defaults to the number of available processors.
+	 * @param parallelism maximum number of concurrent parsing threads, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
 	}
 	
 	/**
@@ -40,43 +79,63 @@ public class Importer {
 	 * @throws InvalidAccessTokenException 
 	 */
 	public void importFileData(UUID adminGuid, String filename, String inputType) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
-    	Scanner lineScanner = null;
+    	CsvTokenizer lineTokenizer = null;
 
     	String line = "";
     	int lineNum = 0;
+    	// parsed product lines not yet added to the ProductCatalog
+    	List<ParsedLine> productBatch = new ArrayList<ParsedLine>();
     	
 		try {
-			// reading file line by line using Scanner
-			lineScanner = new Scanner(new FileInputStream(filename));
+			// reading file line by line, each line is tokenized as it is read
+			lineTokenizer = new CsvTokenizer(new FileInputStream(filename));
 				      
-	    	while(lineScanner.hasNextLine()){
-	    		line = lineScanner.nextLine().trim();
+	    	while(lineTokenizer.nextLine()){
+	    		line = lineTokenizer.getLine();
 	    		// keeping track of the number of lines we have read
 	    		lineNum += 1;
-	    		if(line.equals("") || line.charAt(0)=='#'){
+	    		if(lineTokenizer.isBlankOrComment()){
 	    			// we are ignoring comments and blank lines and do not count these as parsing errors 
 	    		} else {
-	    			// converting all input to lower case for case insensitivity
-	    			line = line.toLowerCase();
-	    			// splitting the lines on a comma delimiter, but ignoring escaped commas (\,)
-	    			String[] splitString = line.split("(?<!\\\\),");	    			
+	    			// the tokenizer converts the line to lower case for case insensitivity and splits it
+	    			// on a comma delimiter, but ignoring escaped commas (\,)
 	    			
 	    			// checking for inputType and importing individual objects depending on type
 	    			if(inputType.equals("country")){
-	    				importCountry(adminGuid, splitString);
+	    				importCountry(adminGuid, lineTokenizer);
 	    			} else if(inputType.equals("device")){
-	    				importDevice(adminGuid, splitString);
+	    				importDevice(adminGuid, lineTokenizer);
 	    			} else if(inputType.equals("product")){
-	    				importProduct(adminGuid,splitString);
+	    				// the product is added with the rest of its batch, or the lines before it if it is invalid
+	    				productBatch.add(parseProductLine(adminGuid, lineTokenizer, lineNum));
+	    				if(productBatch.size() == BATCH_SIZE || productBatch.get(productBatch.size() - 1).error != null){
+	    					ParsedLine failedLine = addParsedProducts(adminGuid, productBatch);
+	    					productBatch.clear();
+	    					if(failedLine != null){
+	    						line = failedLine.line;
+	    						lineNum = failedLine.lineNumber;
+	    						throwError(failedLine.error);
+	    					}
+	    				}
 	    			} else{
 	    				throw new ImportException("Invalid contentType specified", line, lineNum, filename, new Exception());
 	    			}
 	    		}
 	    		
 	    	}
+	    	// adding the last batch of products
+	    	ParsedLine failedLine = addParsedProducts(adminGuid, productBatch);
+	    	if(failedLine != null){
+	    		line = failedLine.line;
+	    		lineNum = failedLine.lineNumber;
+	    		throwError(failedLine.error);
+	    	}
 		} catch (FileNotFoundException fnfe) {
 			// catching the FileNotFoundException and throwing our custom Exception, which includes useful info
 			throw new ImportException("File not found!", line, lineNum, filename, fnfe);
+		} catch (IOException ioe) {
+			// catching an error reading the file and throwing our custom Exception, which includes useful info
+			throw new ImportException("Error reading file", line, lineNum, filename, ioe);
 		} catch (ImportException ie) {
 			// catching ImportException due to invalid line input and re-throwing
 			ie.setLineWhereFailed(line);
@@ -95,32 +154,438 @@ public class Importer {
 			throw iate;
 		} finally {
 			// ensuring the closure the underlying stream
-			if(lineScanner != null){
-				lineScanner.close();
+			if(lineTokenizer != null){
+				try {
+					lineTokenizer.close();
+				} catch (IOException ioe) {
+					// the input was fully read or has already failed, nothing is lost
+				}
 			}
 		}
 	}
 
 	
+	/**
+	 * Method for importing a product file into the ProductCatalog, parsing it on several threads.
+	 * The file is memory mapped and split into chunks ending at a line feed, which are parsed and validated
+	 * in parallel on a pool of at most parallelism threads. The products are then added to the ProductCatalog
+	 * on the calling thread in the order of the file, so the catalog and any ImportException, including its
+	 * line number, are the same as for importFileData with the "product" inputType.
+	 * @param adminGuid the authGuid passed to validate user.
+	 * @param filename the name of the input file.
+	 * @throws ImportException if there is an error accessing or processing the input File.
+	 * @throws AccessDeniedException 
+	 * @throws InvalidAccessTokenException 
+	 */
+	public void importProductFileParallel(UUID adminGuid, String filename) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+		RandomAccessFile file = null;
+		ExecutorService executor = null;
+		
+		String line = "";
+		int lineNum = 0;
+		
+		try {
+			file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			List<Long> chunkStarts = findChunkStarts(channel);
+			int chunkCount = chunkStarts.size() - 1;
+			int threads = Math.min(parallelism, chunkCount);
+			executor = Executors.newFixedThreadPool(threads);
+			
+			// parsing a few chunks ahead of the one being added, so the parsed lines held stay bounded
+			List<Future<List<ParsedLine>>> pendingChunks = new ArrayList<Future<List<ParsedLine>>>();
+			int aheadCount = Math.min(chunkCount, 2 * threads);
+			while (pendingChunks.size() < aheadCount) {
+				int i = pendingChunks.size();
+				pendingChunks.add(submitChunk(executor, adminGuid, channel, chunkStarts.get(i), chunkStarts.get(i + 1)));
+			}
+			
+			// adding the products in file order, the line numbers of each chunk follow those of the previous one
+			int chunkFirstLine = 0;
+			for (int chunk = 0; chunk < chunkCount; chunk++) {
+				List<ParsedLine> parsedLines = pendingChunks.get(chunk).get();
+				pendingChunks.set(chunk, null);
+				int next = pendingChunks.size();
+				if (next < chunkCount) {
+					pendingChunks.add(submitChunk(executor, adminGuid, channel, chunkStarts.get(next), chunkStarts.get(next + 1)));
+				}
+				ParsedLine failedLine = addParsedProducts(adminGuid, parsedLines);
+				if (failedLine != null) {
+					line = failedLine.line;
+					lineNum = chunkFirstLine + failedLine.lineNumber;
+					throwError(failedLine.error);
+				}
+				// the last entry of a chunk records its number of lines
+				chunkFirstLine += parsedLines.get(parsedLines.size() - 1).lineNumber;
+			}
+		} catch (FileNotFoundException fnfe) {
+			// catching the FileNotFoundException and throwing our custom Exception, which includes useful info
+			throw new ImportException("File not found!", line, lineNum, filename, fnfe);
+		} catch (IOException ioe) {
+			// catching an error reading the file and throwing our custom Exception, which includes useful info
+			throw new ImportException("Error reading file", line, lineNum, filename, ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new ImportException("Interrupted while importing products", line, lineNum, filename, ie);
+		} catch (ExecutionException ee) {
+			// catching the Exception of a failed chunk and throwing our custom Exception, which includes useful info
+			throw new ImportException("Error reading file", line, lineNum, filename, ee.getCause());
+		} catch (ImportException ie) {
+			// catching ImportException due to invalid line input and re-throwing
+			ie.setLineWhereFailed(line);
+			ie.setLineIndexWhereFailed(lineNum);
+			ie.setFilename(filename);
+			throw ie;
+		} catch (AccessDeniedException ade) {
+			ade.setLineWhereFailed(line);
+			ade.setLineIndexWhereFailed(lineNum);
+			ade.setFilename(filename);
+			throw ade;
+		} catch (InvalidAccessTokenException iate) {
+			iate.setLineWhereFailed(line);
+			iate.setLineIndexWhereFailed(lineNum);
+			iate.setFilename(filename);
+			throw iate;
+		} finally {
+			// stopping the pool threads, and any chunk not yet parsed after a failure
+			if(executor != null){
+				executor.shutdownNow();
+			}
+			// ensuring the closure the underlying file
+			if(file != null){
+				try {
+					file.close();
+				} catch (IOException ioe) {
+					// the input was fully read or has already failed, nothing is lost
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Method for importing a full product file which was already imported, applying only what changed.
+	 * Each line is fingerprinted with a 64 bit hash, and only the lines whose fingerprint differs from the
+	 * line their product was last imported from are parsed. Their products are added, or replace the
+	 * product with the same id, through a single upsertProducts call once the whole file is read, so only
+	 * the changed products are indexed. Nothing is applied if any changed line is invalid.
+	 * Lines are only known once imported by this Importer, so the first delta import applies every line.
+	 * @param adminGuid the authGuid passed to validate user.
+	 * @param filename the name of the input file.
+	 * @param removeMissing true to also remove the products of the catalog with no line in the file
+	 * @throws ImportException if there is an error accessing or processing the input File.
+	 * @throws AccessDeniedException 
+	 * @throws InvalidAccessTokenException 
+	 */
+	public void importProductDelta(UUID adminGuid, String filename, boolean removeMissing) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+		CsvTokenizer lineTokenizer = null;
+		
+		String line = "";
+		int lineNum = 0;
+		
+		try {
+			ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+			// the products of the changed lines, with the fingerprints to record once they are applied
+			List<Product> changedProducts = new ArrayList<Product>();
+			Map<String, Long> changedFingerprints = new HashMap<String, Long>();
+			Set<String> feedIds = new HashSet<String>();
+			
+			lineTokenizer = new CsvTokenizer(new FileInputStream(filename));
+			while(lineTokenizer.nextLine()){
+				line = lineTokenizer.getLine();
+				lineNum += 1;
+				if(lineTokenizer.isBlankOrComment()){
+					// we are ignoring comments and blank lines and do not count these as parsing errors
+					continue;
+				}
+				long fingerprint = lineTokenizer.getLineFingerprint();
+				String productId = (lineTokenizer.getFieldCount() > 1) ? lineTokenizer.getTrimmed(1) : null;
+				if(productId != null){
+					if(!feedIds.add(productId)){
+						throw new ImportException("Duplicate ProductId", line, lineNum, filename, new Exception());
+					}
+					Long previous = productFingerprints.get(productId);
+					if(previous != null && previous.longValue() == fingerprint && pCatalog.getProductById(productId) != null){
+						// unchanged since the product was last imported
+						continue;
+					}
+				}
+				Product product = parseProduct(adminGuid, lineTokenizer);
+				changedProducts.add(product);
+				changedFingerprints.put(product.getProductId(), fingerprint);
+			}
+			
+			Set<String> removedIds = new HashSet<String>();
+			if(removeMissing){
+				// the products of the catalog, or those imported by this Importer if the catalog cannot list them
+				ProductCatalogImpl catalogImpl = (pCatalog instanceof ProductCatalogImpl) ? (ProductCatalogImpl) pCatalog : null;
+				if(catalogImpl != null){
+					for (Product product : catalogImpl.getProducts()) {
+						if(!feedIds.contains(product.getProductId())){
+							removedIds.add(product.getProductId());
+						}
+					}
+				} else {
+					for (String productId : productFingerprints.keySet()) {
+						if(!feedIds.contains(productId)){
+							removedIds.add(productId);
+						}
+					}
+				}
+			}
+			
+			pCatalog.upsertProducts(adminGuid, changedProducts, removedIds);
+			productFingerprints.putAll(changedFingerprints);
+			productFingerprints.keySet().removeAll(removedIds);
+		} catch (FileNotFoundException fnfe) {
+			// catching the FileNotFoundException and throwing our custom Exception, which includes useful info
+			throw new ImportException("File not found!", line, lineNum, filename, fnfe);
+		} catch (IOException ioe) {
+			// catching an error reading the file and throwing our custom Exception, which includes useful info
+			throw new ImportException("Error reading file", line, lineNum, filename, ioe);
+		} catch (ImportException ie) {
+			// catching ImportException due to invalid line input and re-throwing
+			ie.setLineWhereFailed(line);
+			ie.setLineIndexWhereFailed(lineNum);
+			ie.setFilename(filename);
+			throw ie;
+		} catch (AccessDeniedException ade) {
+			ade.setLineWhereFailed(line);
+			ade.setLineIndexWhereFailed(lineNum);
+			ade.setFilename(filename);
+			throw ade;
+		} catch (InvalidAccessTokenException iate) {
+			iate.setLineWhereFailed(line);
+			iate.setLineIndexWhereFailed(lineNum);
+			iate.setFilename(filename);
+			throw iate;
+		} finally {
+			// ensuring the closure the underlying stream
+			if(lineTokenizer != null){
+				try {
+					lineTokenizer.close();
+				} catch (IOException ioe) {
+					// the input was fully read or has already failed, nothing is lost
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Submits the parsing of a chunk of a file to the pool.
+	 * @return the pending parsed lines of the chunk
+	 */
+	private Future<List<ParsedLine>> submitChunk(ExecutorService executor, final UUID adminGuid, final FileChannel channel, final long start, final long end) {
+		return executor.submit(new Callable<List<ParsedLine>>() {
+			public List<ParsedLine> call() throws IOException {
+				return parseChunk(adminGuid, channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+			}
+		});
+	}
+	
+	/**
+	 * Splits a file into chunks of about CHUNK_SIZE bytes, each extended to the line feed ending its last line.
+	 * Line feeds are single bytes in the charsets the files are read in, so no character spans two chunks.
+	 * @param channel the file
+	 * @return the offsets starting each chunk, followed by the file size
+	 * @throws IOException if the file cannot be read
+	 */
+	private List<Long> findChunkStarts(FileChannel channel) throws IOException {
+		List<Long> chunkStarts = new ArrayList<Long>();
+		long size = channel.size();
+		long start = 0;
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		while (start < size) {
+			chunkStarts.add(start);
+			long end = start + CHUNK_SIZE;
+			// moving the end of the chunk after the next line feed
+			while (end < size) {
+				window.clear();
+				int read = channel.read(window, end);
+				if (read <= 0) {
+					end = size;
+					break;
+				}
+				int newline = 0;
+				while (newline < read && window.get(newline) != '\n') {
+					newline++;
+				}
+				end += (newline < read) ? newline + 1 : read;
+				if (newline < read) {
+					break;
+				}
+			}
+			start = Math.min(end, size);
+		}
+		chunkStarts.add(size);
+		if (chunkStarts.size() == 1) {
+			// an empty file is a single empty chunk
+			chunkStarts.add(0, 0L);
+		}
+		return chunkStarts;
+	}
+	
+	/**
+	 * Parses and validates the product lines of a chunk of a file. Parsing stops at the first invalid line,
+	 * whose ImportException is recorded for the lines before it to be added first.
+	 * @param adminGuid the authGuid passed to validate user.
+	 * @param chunk the bytes of the chunk, ending at the end of a line
+	 * @return the parsed lines, the last entry holding the number of lines of the chunk if it was fully parsed
+	 * @throws IOException if the chunk cannot be read
+	 */
+	private List<ParsedLine> parseChunk(UUID adminGuid, ByteBuffer chunk) throws IOException {
+		List<ParsedLine> parsedLines = new ArrayList<ParsedLine>();
+		// decoding in the platform default charset, as the other readers do
+		CharBuffer chars = Charset.defaultCharset().decode(chunk);
+		CsvTokenizer lineTokenizer = new CsvTokenizer(new CharArrayReader(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining()));
+		try {
+			while(lineTokenizer.nextLine()){
+				if(!lineTokenizer.isBlankOrComment()){
+					parsedLines.add(parseProductLine(adminGuid, lineTokenizer, lineTokenizer.getLineNumber()));
+					if(parsedLines.get(parsedLines.size() - 1).error != null){
+						return parsedLines;
+					}
+				}
+			}
+			parsedLines.add(new ParsedLine(lineTokenizer.getLineNumber(), "", 0, null, null));
+		} finally {
+			lineTokenizer.close();
+		}
+		return parsedLines;
+	}
+	
+	/**
+	 * Parses and validates a product line, recording the ImportException of an invalid line instead of throwing it.
+	 * @param adminGuid the authGuid passed to validate user.
+	 * @param fields the fields of the parsed line from the csv file.
+	 * @param lineNumber the number of the line
+	 * @return the parsed line
+	 */
+	private ParsedLine parseProductLine(UUID adminGuid, CsvTokenizer fields, int lineNumber) {
+		try {
+			return new ParsedLine(lineNumber, fields.getLine(), fields.getLineFingerprint(), parseProduct(adminGuid, fields), null);
+		} catch (ImportException ie) {
+			return new ParsedLine(lineNumber, fields.getLine(), 0, null, ie);
+		}
+	}
+	
+	/**
+	 * Adds the products of parsed lines to the ProductCatalog in a single addProducts batch, up to the
+	 * first invalid line. If the catalog rejects the batch, none of its products were added, so they are
+	 * added again one by one to find the line at fault, leaving the catalog as importing each line in
+	 * turn would.
+	 * @param adminGuid the authGuid passed to validate user.
+	 * @param parsedLines the parsed lines, in file order
+	 * @return the first line which is invalid or whose product could not be added, null if there is none
+	 */
+	private ParsedLine addParsedProducts(UUID adminGuid, List<ParsedLine> parsedLines) {
+		ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+		List<Product> products = new ArrayList<Product>(parsedLines.size());
+		ParsedLine invalidLine = null;
+		for (ParsedLine parsedLine : parsedLines) {
+			if (parsedLine.error != null) {
+				invalidLine = parsedLine;
+				break;
+			}
+			if (parsedLine.product != null) {
+				products.add(parsedLine.product);
+			}
+		}
+		if (products.isEmpty()) {
+			return invalidLine;
+		}
+		try {
+			pCatalog.addProducts(adminGuid, products);
+			for (ParsedLine parsedLine : parsedLines) {
+				if (parsedLine == invalidLine) {
+					break;
+				}
+				if (parsedLine.product != null) {
+					productFingerprints.put(parsedLine.product.getProductId(), parsedLine.fingerprint);
+				}
+			}
+			return invalidLine;
+		} catch (ImportException ie) {
+			// finding the line at fault below
+		} catch (AccessDeniedException ade) {
+			// finding the line at fault below
+		} catch (InvalidAccessTokenException iate) {
+			// finding the line at fault below
+		}
+		for (ParsedLine parsedLine : parsedLines) {
+			if (parsedLine.error != null) {
+				return parsedLine;
+			}
+			if (parsedLine.product != null) {
+				try {
+					pCatalog.addProduct(adminGuid, parsedLine.product);
+					productFingerprints.put(parsedLine.product.getProductId(), parsedLine.fingerprint);
+				} catch (ImportException ie) {
+					return new ParsedLine(parsedLine.lineNumber, parsedLine.line, 0, null, ie);
+				} catch (AccessDeniedException ade) {
+					return new ParsedLine(parsedLine.lineNumber, parsedLine.line, 0, null, ade);
+				} catch (InvalidAccessTokenException iate) {
+					return new ParsedLine(parsedLine.lineNumber, parsedLine.line, 0, null, iate);
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Throws the exception recorded for a failed line.
+	 * @param error an ImportException, AccessDeniedException or InvalidAccessTokenException
+	 */
+	private static void throwError(Exception error) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+		if (error instanceof AccessDeniedException) {
+			throw (AccessDeniedException) error;
+		}
+		if (error instanceof InvalidAccessTokenException) {
+			throw (InvalidAccessTokenException) error;
+		}
+		throw (ImportException) error;
+	}
+	
+	/**
+	 * A parsed product line: the product, or the exception of an invalid line or of a product which could not be added.
+	 */
+	private static final class ParsedLine {
+		
+		// line number in the file, or within the chunk for importProductFileParallel, from 1
+		private final int lineNumber;
+		private final String line;
+		// fingerprint of the line, recorded with its product for importProductDelta
+		private final long fingerprint;
+		private final Product product;
+		private final Exception error;
+		
+		ParsedLine(int lineNumber, String line, long fingerprint, Product product, Exception error) {
+			this.lineNumber = lineNumber;
+			this.line = line;
+			this.fingerprint = fingerprint;
+			this.product = product;
+			this.error = error;
+		}
+	}
+	
 	/**
 	 * Private method to process valid parsed line and import an individual country into 
 	 * the ProductCatalog.
 	 * @param adminGuid the authGuid passed to validate user.
-	 * @param splitString the parsed line from the csv file.
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws ImportException if a parsing problem is encountered
 	 * @throws AccessDeniedException 
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void importCountry(UUID adminGuid, String[] splitString) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+	private void importCountry(UUID adminGuid, CsvTokenizer fields) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
 		// when line is parsed we should only have 3 variables,
 		// if we more/less the line is not in the correct format
-		if(splitString.length==3){
+		if(fields.getFieldCount()==3){
 			
 			// expects string with either 'open' or 'closed'
 			boolean isExportOpen = false;
-			if(splitString[2].trim().equals("open")){
+			if(fields.getTrimmed(2).equals("open")){
 				isExportOpen = true;
-			}else if (splitString[2].trim().equals("closed")){
+			}else if (fields.getTrimmed(2).equals("closed")){
 				isExportOpen = false;
 			}else{
 				// if not "open" or "closed" it is incorrect
@@ -128,12 +593,12 @@ public class Importer {
 			}
 			
 			// removing any escape characters from the country name
-			String countryName = splitString[1].trim().replaceAll("\\\\", "");
+			String countryName = fields.getUnescaped(1);
 			
 			// calling singleton instance of ProductCatalog
 			ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
 			// adding country to ProductCatalog country list
-			pCatalog.addCountry(adminGuid, splitString[0].trim(), countryName, isExportOpen);
+			pCatalog.addCountry(adminGuid, fields.getTrimmed(0), countryName, isExportOpen);
 			
 		}else {
 			// more than 3 split strings, indicates an invalid input line.
@@ -148,23 +613,23 @@ public class Importer {
 	 * Private method to process valid parsed line and import an individual device into 
 	 * the ProductCatalog.
 	 * @param adminGuid the authGuid passed to validate user.
-	 * @param splitString the parsed line from the csv file.
+	 * @param fields the fields of the parsed line from the csv file.
 	 * @throws ImportException if a parsing problem is encountered
 	 * @throws AccessDeniedException 
 	 * @throws InvalidAccessTokenException 
 	 */
-	private void importDevice(UUID adminGuid, String[] splitString) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+	private void importDevice(UUID adminGuid, CsvTokenizer fields) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
 		// when line is parsed we should only have 3 variables,
 		// if we more/less the line is not in the correct format
-		if(splitString.length==3){
+		if(fields.getFieldCount()==3){
 				
 			// removing any escape characters from the device name
-			String deviceName = splitString[1].trim().replaceAll("\\\\", "");
+			String deviceName = fields.getUnescaped(1);
 			
 			// calling singleton instance of ProductCatalog
 			ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
 			// adding device to ProductCatalog device list
-			pCatalog.addDevice(adminGuid, splitString[0].trim(), deviceName, splitString[2].trim());	    				
+			pCatalog.addDevice(adminGuid, fields.getTrimmed(0), deviceName, fields.getTrimmed(2));	    				
 		}else {
 			// more than 3 split strings, indicates an invalid input line.
 			// throwing ImportException when we encounter an invalid line. Invalid line
@@ -176,35 +641,36 @@ public class Importer {
 	}
 	
 	/**
-	 * Private method to process valid parsed line and import an individual product into 
-	 * the ProductCatalog.
+	 * Private method to parse and validate a product line, without adding the product to the ProductCatalog.
+	 * Only reads the ProductCatalog, so lines can be parsed on several threads at the same time.
 	 * @param adminGuid the authGuid passed to validate user.
-	 * @param splitString the parsed line from the csv file.
+	 * @param fields the fields of the parsed line from the csv file.
+	 * @return the product of the line
 	 * @throws ImportException if a parsing problem is encountered
-	 * @throws AccessDeniedException 
-	 * @throws InvalidAccessTokenException 
 	 */
-	private void importProduct(UUID adminGuid, String[] splitString) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+	private Product parseProduct(UUID adminGuid, CsvTokenizer fields) throws ImportException {
 		// when line is parsed we should only have 12 variables, or 13 as application
 		// if we more/less the line is not in the correct format
-		if(splitString.length==12 || (splitString.length==13 && splitString[0].trim().equals("application"))){
+		if(fields.getFieldCount()==12 || (fields.getFieldCount()==13 && fields.getTrimmed(0).equals("application"))){
 			
 			// calling singleton instance of ProductCatalog
 			ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+			// the catalog dictionary holds a single copy of each category and language
+			ProductCatalogImpl catalogImpl = (pCatalog instanceof ProductCatalogImpl) ? (ProductCatalogImpl) pCatalog : null;
 			
 			// parsing params for product
-			String contentType = splitString[0].trim();					
-			String productId = splitString[1].trim();
-			String productName = splitString[2].trim().replaceAll("\\\\", "");;			
-			String productDescription = splitString[3].trim().replaceAll("\\\\", "");;			
-			String author = splitString[4].trim().replaceAll("\\\\", "");;			
-			String imageUrl = splitString[11].trim();
+			String contentType = fields.getTrimmed(0);					
+			String productId = fields.getTrimmed(1);
+			String productName = fields.getUnescaped(2);;			
+			String productDescription = fields.getUnescaped(3);;			
+			String author = fields.getUnescaped(4);;			
+			String imageUrl = fields.getTrimmed(11);
 			
 			// parsing rating from input
 			// defaults to 0
 			int rating = 0;
 			try{
-				rating = Integer.parseInt(splitString[5].trim());
+				rating = Integer.parseInt(fields.getTrimmed(5));
 				if(rating<0 || rating>5){
 					throw new ImportException("Error in parsing input line: invalid rating", "", 0, "", new Exception());
 				}
@@ -216,7 +682,7 @@ public class Importer {
 			// defaults to 0/free
 			float price = 0;
 			try{
-				price = Float.parseFloat(splitString[9].trim());
+				price = Float.parseFloat(fields.getTrimmed(9));
 				// free or more, assuming negative price is incorrect input
 				if(price < 0){
 					throw new ImportException("Error in parsing input line: invalid price", "", 0, "", new Exception());
@@ -226,14 +692,14 @@ public class Importer {
 			}
 			
 			// splitting categories on pipe delimiter
-			String[] splitCategories = splitString[6].trim().split("\\|");
+			String[] splitCategories = fields.getSubFields(6);
 			Set<String> categories = new HashSet<String>();
 			for (String category : splitCategories) {
-				categories.add(category);
+				categories.add((catalogImpl != null) ? catalogImpl.internCategory(category) : category);
 			}
 			
 			// splitting export countries on pipe delimiter
-			String[] splitExportCountries = splitString[7].trim().split("\\|");
+			String[] splitExportCountries = fields.getSubFields(7);
 			List<Country> countries = new ArrayList<Country>();
 			for (String countryId : splitExportCountries) {
 				// we check if the input country is a valid country existing in the ProductCatalog list of countries
@@ -246,7 +712,7 @@ public class Importer {
 			}
 			
 			// splitting export devices on pipe delimiter
-			String[] splitDevices = splitString[8].trim().split("\\|");
+			String[] splitDevices = fields.getSubFields(8);
 			List<Device> devices = new ArrayList<Device>();
 			for (String deviceId : splitDevices) {
 				// we check if the input country is a valid device existing in the ProductCatalog list of devices
@@ -259,17 +725,17 @@ public class Importer {
 			}
 			
 			// splitting export language on pipe delimiter
-			String[] splitSupportedLanguages = splitString[10].trim().split("\\|");
+			String[] splitSupportedLanguages = fields.getSubFields(10);
 			List<String> languages = new ArrayList<String>();
 			for (String language : splitSupportedLanguages) {
-				languages.add(language);
+				languages.add((catalogImpl != null) ? catalogImpl.internLanguage(language) : language);
 			}			
 			
 			Product product = null;
 			if(contentType.equals("application")){	// we are validating in the ConStructors for correct input !!!!!!!!
 				float appSize = 0;
 				try{
-					appSize = Float.parseFloat(splitString[12].trim());
+					appSize = Float.parseFloat(fields.getTrimmed(12));
 					// application size must be non-negative
 					if(appSize < 0){
 						throw new ImportException("Error in parsing input line: invalid appSize", "", 0, "", new Exception());
@@ -292,11 +758,7 @@ public class Importer {
 			}else{
 				throw new ImportException("Error in parsing input line: invalid contentType", "", 0, "", new Exception());
 			}
-			
-			if (product!=null){
-				// add product to ProductCatalog
-				pCatalog.addProduct(adminGuid, product);
-			}
+			return product;
 		}else {
 			// more than 13 split strings, indicates an invalid input line.
 			// throwing ImportException when we encounter an invalid line. Invalid line
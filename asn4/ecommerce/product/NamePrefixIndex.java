@@ -0,0 +1,283 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The NamePrefixIndex class answers type-ahead lookups over product names. The product ordinals are kept
+ * sorted by name, ignoring case, so the products whose name starts with a prefix are one slice of the
+ * sorted ordinals found by binary search. A tree holding the highest rating of each range of the sorted
+ * ordinals then finds the best rated products of a slice without reading the rest of it, so the top
+ * completions of a short prefix matching most of the catalog cost no more than those of a long one.
+ * As for the SortedPriceIndex, newly added ordinals are sorted and merged in as a batch once the catalog
+ * index is built, and the result is published as a whole so completions never lock.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class NamePrefixIndex {
+
+	/**
+	 * Orders completions best first: highest rating, then name ignoring case, then ordinal.
+	 */
+	static final class CompletionComparator implements Comparator<Integer> {
+
+		private final CatalogSnapshot snapshot;
+
+		CompletionComparator(CatalogSnapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		public int compare(Integer a, Integer b) {
+			int byRating = Integer.compare(snapshot.getRating(b), snapshot.getRating(a));
+			if (byRating != 0) {
+				return byRating;
+			}
+			int byName = String.CASE_INSENSITIVE_ORDER.compare(getName(snapshot.getProduct(a)), getName(snapshot.getProduct(b)));
+			return (byName != 0) ? byName : Integer.compare(a, b);
+		}
+	}
+
+	private final CatalogIndex index;
+	// the ordinals sorted by name with their rating tree, replaced as a whole when added ordinals are merged
+	// in, so completions read it without locking
+	private volatile SortedNames sortedNames;
+
+	/**
+	 * Constructor for an empty NamePrefixIndex
+	 * @param index the catalog index holding the products
+	 */
+	NamePrefixIndex(CatalogIndex index) {
+		this.index = index;
+		this.sortedNames = new SortedNames(new int[0], new byte[0], 0);
+	}
+
+	/**
+	 * Constructor for a NamePrefixIndex starting from the sorted ordinals of a base index, the ordinals
+	 * added since are merged in by update or on the next read. The sorted names are shared, as they are
+	 * never modified.
+	 * @param index the catalog index holding the products
+	 * @param base the name index of the base catalog index
+	 */
+	NamePrefixIndex(CatalogIndex index, NamePrefixIndex base) {
+		this.index = index;
+		this.sortedNames = base.sortedNames;
+	}
+
+	/**
+	 * Merges in the ordinals added since the last merge, so reads find the index up to date.
+	 * Called once the catalog index is built, before it is published to queries.
+	 */
+	void update() {
+		getSortedNames();
+	}
+
+	/**
+	 * Finds the best rated products whose name starts with a prefix, ignoring case.
+	 * @param prefix start of the product name
+	 * @param limit maximum number of products to return
+	 * @param removed ordinals of the products to leave out
+	 * @return ordinals of the products, best rated first, products with the same rating by name
+	 */
+	int[] complete(String prefix, int limit, ProductBitmap removed) {
+		SortedNames names = getSortedNames();
+		int start = findPrefixStart(names, prefix);
+		int end = findPrefixEnd(names, prefix, start);
+		int[] completions = new int[Math.max(0, Math.min(limit, end - start))];
+		int count = 0;
+		// collecting the slice positions of each rating in turn, skipping ranges without a high enough rating
+		for (int rating = 5; rating >= 0 && count < completions.length; rating--) {
+			count = collect(names, 1, 0, names.leafCount, start, end, rating, removed, completions, count);
+		}
+		for (int i = 0; i < count; i++) {
+			completions[i] = names.ordinals[completions[i]];
+		}
+		return (count < completions.length) ? Arrays.copyOf(completions, count) : completions;
+	}
+
+	/**
+	 * Checks whether a product name starts with a prefix, ignoring case as the index does.
+	 * @param product the product
+	 * @param prefix start of the product name
+	 * @return true if the name starts with the prefix
+	 */
+	static boolean hasPrefix(Product product, String prefix) {
+		return comparePrefix(getName(product), prefix) == 0;
+	}
+
+	/**
+	 * @return the sorted names with every product of the catalog index merged in
+	 */
+	private SortedNames getSortedNames() {
+		SortedNames names = sortedNames;
+		if (names.ordinals.length < index.getProductCount()) {
+			names = merge();
+		}
+		return names;
+	}
+
+	/**
+	 * Adds the positions of the slice [start, end) holding exactly the rating, in position order, below a tree node.
+	 * @return the new number of positions collected
+	 */
+	private int collect(SortedNames names, int node, int nodeStart, int nodeEnd, int start, int end, int rating, ProductBitmap removed,
+			int[] positions, int count) {
+		if (count == positions.length || nodeEnd <= start || end <= nodeStart || names.ratingTree[node] < rating) {
+			return count;
+		}
+		if (node >= names.leafCount) {
+			// only leaves holding exactly the rating, higher ones were collected in an earlier pass
+			if (names.ratingTree[node] == rating && !removed.contains(names.ordinals[nodeStart])) {
+				positions[count++] = nodeStart;
+			}
+			return count;
+		}
+		int middle = (nodeStart + nodeEnd) >>> 1;
+		count = collect(names, 2 * node, nodeStart, middle, start, end, rating, removed, positions, count);
+		return collect(names, 2 * node + 1, middle, nodeEnd, start, end, rating, removed, positions, count);
+	}
+
+	/**
+	 * @return first position of a name at or after the prefix
+	 */
+	private int findPrefixStart(SortedNames names, String prefix) {
+		int low = 0;
+		int high = names.ordinals.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (comparePrefix(getName(index.getProduct(names.ordinals[middle])), prefix) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return first position after start of a name not starting with the prefix
+	 */
+	private int findPrefixEnd(SortedNames names, String prefix, int start) {
+		int low = start;
+		int high = names.ordinals.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (comparePrefix(getName(index.getProduct(names.ordinals[middle])), prefix) == 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Sorts the ordinals added since the last merge, merges them with the sorted ordinals, rebuilds the
+	 * rating tree and publishes them together. Only merges run one at a time, reads never wait for them.
+	 * @return the new sorted names
+	 */
+	private synchronized SortedNames merge() {
+		SortedNames names = sortedNames;
+		int productCount = index.getProductCount();
+		int sortedCount = names.ordinals.length;
+		if (sortedCount >= productCount) {
+			// merged by another thread meanwhile
+			return names;
+		}
+		int[] sortedOrdinals = names.ordinals;
+		int addedCount = productCount - sortedCount;
+		Integer[] added = new Integer[addedCount];
+		for (int i = 0; i < addedCount; i++) {
+			added[i] = sortedCount + i;
+		}
+		// the sort is stable, so products with the same name stay in ordinal order
+		Arrays.sort(added, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return String.CASE_INSENSITIVE_ORDER.compare(getName(index.getProduct(a)), getName(index.getProduct(b)));
+			}
+		});
+
+		int[] merged = new int[productCount];
+		int i = 0, j = 0, k = 0;
+		while (i < sortedCount && j < addedCount) {
+			// on equal names the existing ordinal is the lower one
+			if (String.CASE_INSENSITIVE_ORDER.compare(getName(index.getProduct(added[j])), getName(index.getProduct(sortedOrdinals[i]))) < 0) {
+				merged[k++] = added[j++];
+			} else {
+				merged[k++] = sortedOrdinals[i++];
+			}
+		}
+		while (i < sortedCount) {
+			merged[k++] = sortedOrdinals[i++];
+		}
+		while (j < addedCount) {
+			merged[k++] = added[j++];
+		}
+		names = buildRatingTree(merged);
+		sortedNames = names;
+		return names;
+	}
+
+	/**
+	 * Builds the tree of highest ratings bottom up, empty leaves hold -1 so they are never collected.
+	 * @param sortedOrdinals the ordinals sorted by name
+	 * @return the sorted names with their rating tree
+	 */
+	private SortedNames buildRatingTree(int[] sortedOrdinals) {
+		byte[] ratings = index.getRatingColumn();
+		int leafCount = Integer.highestOneBit(Math.max(1, sortedOrdinals.length - 1)) << 1;
+		byte[] ratingTree = new byte[2 * leafCount];
+		Arrays.fill(ratingTree, leafCount, ratingTree.length, (byte) -1);
+		for (int position = 0; position < sortedOrdinals.length; position++) {
+			ratingTree[leafCount + position] = ratings[sortedOrdinals[position]];
+		}
+		for (int node = leafCount - 1; node > 0; node--) {
+			ratingTree[node] = (byte) Math.max(ratingTree[2 * node], ratingTree[2 * node + 1]);
+		}
+		return new SortedNames(sortedOrdinals, ratingTree, leafCount);
+	}
+
+	/**
+	 * Compares the start of a name with a prefix, folding case as String.CASE_INSENSITIVE_ORDER does.
+	 * @return 0 if the name starts with the prefix, otherwise the order of the name relative to the names that do
+	 */
+	private static int comparePrefix(String name, String prefix) {
+		int length = Math.min(name.length(), prefix.length());
+		for (int i = 0; i < length; i++) {
+			char c1 = name.charAt(i);
+			char c2 = prefix.charAt(i);
+			if (c1 != c2) {
+				c1 = Character.toLowerCase(Character.toUpperCase(c1));
+				c2 = Character.toLowerCase(Character.toUpperCase(c2));
+				if (c1 != c2) {
+					return c1 - c2;
+				}
+			}
+		}
+		// a name shorter than the prefix sorts before the names starting with it
+		return (name.length() < prefix.length()) ? -1 : 0;
+	}
+
+	private static String getName(Product product) {
+		return (product.getProductName() == null) ? "" : product.getProductName();
+	}
+
+	/**
+	 * The ordinals sorted by name and the tree of highest ratings over them, never modified once built.
+	 */
+	private static final class SortedNames {
+
+		// ordinals sorted by name, products with the same name by ordinal
+		private final int[] ordinals;
+		// highest rating of each node of a complete binary tree over the sorted ordinals, leaves start at leafCount
+		private final byte[] ratingTree;
+		private final int leafCount;
+
+		SortedNames(int[] ordinals, byte[] ratingTree, int leafCount) {
+			this.ordinals = ordinals;
+			this.ratingTree = ratingTree;
+			this.leafCount = leafCount;
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package cscie97.asn4.ecommerce.product;
+
+/**
+ * The PredicateProfile class describes the evaluation of one criteria of a profiled ProductCatalog query:
+ * where it came in the plan, how it was answered, how many products it was given and left, and how long it took.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public class PredicateProfile {
+
+	/**
+	 * How a criteria is answered.
+	 */
+	public enum AccessPath {
+		/** read from an index without checking the products one by one */
+		INDEX,
+		/** every product of the catalog checked one by one */
+		FULL_SCAN,
+		/** the candidates left by the previous criteria checked one by one */
+		CANDIDATE_CHECK
+	}
+
+	private int order;
+	private String predicate;
+	private AccessPath accessPath;
+	private int estimatedMatches;
+	private int candidatesIn;
+	private int candidatesOut;
+	private long timeNanos;
+
+	/**
+	 * Constructor for PredicateProfile
+	 * @param order position of the criteria in the plan, from 1
+	 * @param predicate description of the criteria
+	 * @param accessPath how the criteria was answered
+	 * @param estimatedMatches number of products the planner expected the criteria to match in the catalog
+	 * @param candidatesIn number of products the criteria was evaluated on
+	 * @param candidatesOut number of those products matching the criteria
+	 * @param timeNanos time spent evaluating the criteria, in nanoseconds
+	 */
+	public PredicateProfile(int order, String predicate, AccessPath accessPath, int estimatedMatches, int candidatesIn,
+			int candidatesOut, long timeNanos) {
+		this.order = order;
+		this.predicate = predicate;
+		this.accessPath = accessPath;
+		this.estimatedMatches = estimatedMatches;
+		this.candidatesIn = candidatesIn;
+		this.candidatesOut = candidatesOut;
+		this.timeNanos = timeNanos;
+	}
+
+	public int getOrder() {
+		return order;
+	}
+
+	public String getPredicate() {
+		return predicate;
+	}
+
+	public AccessPath getAccessPath() {
+		return accessPath;
+	}
+
+	public int getEstimatedMatches() {
+		return estimatedMatches;
+	}
+
+	public int getCandidatesIn() {
+		return candidatesIn;
+	}
+
+	public int getCandidatesOut() {
+		return candidatesOut;
+	}
+
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return order + ". " + predicate + " [" + accessPath + "] estimated=" + estimatedMatches + " in=" + candidatesIn
+				+ " out=" + candidatesOut + " time=" + (timeNanos / 1000) + "us";
+	}
+
+}
@@ -0,0 +1,693 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * The ProductBitmap class is a compressed bitmap of product ordinals used by the ProductCatalog indexes.
+ * Ordinals are dense ints assigned to each Product as it is added to the catalog.
+ * The bitmap follows the roaring bitmap layout, the ordinals are partitioned on their high 16 bits
+ * and each partition is stored in a container. Sparse partitions use a sorted array of the low 16 bits,
+ * dense partitions (more than 4096 values) use a plain 65536 bit bitmap, so both rare and common
+ * attribute values stay compact and can be combined with word level AND/OR operations.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class ProductBitmap {
+
+	// max number of values held in an array container, above this a bitmap container is smaller
+	private static final int ARRAY_CONTAINER_MAX = 4096;
+	// number of 64 bit words in a bitmap container
+	private static final int BITMAP_WORDS = 1024;
+
+	// high 16 bits of the ordinals in each container, sorted
+	private char[] keys;
+	private Container[] containers;
+	private int containerCount;
+
+	/**
+	 * Constructor for an empty ProductBitmap
+	 */
+	ProductBitmap() {
+		this.keys = new char[4];
+		this.containers = new Container[4];
+		this.containerCount = 0;
+	}
+
+	/**
+	 * Returns a copy of the bitmap which ordinals above the current highest can be added to without
+	 * modifying this bitmap. Only the last container, the one such ordinals may share, is copied and
+	 * the others are shared, so the copy costs O(number of containers) rather than O(cardinality).
+	 * The shared containers are not modified as long as only higher ordinals are added to the copy.
+	 * @return new ProductBitmap with the same ordinals
+	 */
+	ProductBitmap copyForAppend() {
+		ProductBitmap copy = new ProductBitmap();
+		copy.keys = Arrays.copyOf(keys, Math.max(4, keys.length));
+		copy.containers = Arrays.copyOf(containers, Math.max(4, containers.length));
+		copy.containerCount = containerCount;
+		if (containerCount > 0) {
+			copy.containers[containerCount - 1] = containers[containerCount - 1].copy();
+		}
+		return copy;
+	}
+
+	/**
+	 * Creates a bitmap holding every ordinal in a range.
+	 * @param fromOrdinal first ordinal of the range
+	 * @param toOrdinal ordinal after the last of the range
+	 * @return new ProductBitmap of the range
+	 */
+	static ProductBitmap range(int fromOrdinal, int toOrdinal) {
+		ProductBitmap bitmap = new ProductBitmap();
+		int start = fromOrdinal;
+		while (start < toOrdinal) {
+			// filling one container at a time, up to the end of its 65536 values
+			int containerEnd = (int) Math.min((long) toOrdinal, ((long) (start >>> 16) + 1) << 16);
+			BitmapContainer container = new BitmapContainer();
+			container.addRange(lowBits(start), containerEnd - start);
+			Container compact = (container.getCardinality() <= ARRAY_CONTAINER_MAX) ? container.toArrayContainer() : container;
+			bitmap.appendContainer(highBits(start), compact);
+			start = containerEnd;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Adds an ordinal to the bitmap.
+	 * @param ordinal the product ordinal
+	 */
+	void add(int ordinal) {
+		char key = highBits(ordinal);
+		int pos = findContainer(key);
+		if (pos >= 0) {
+			containers[pos] = containers[pos].add(lowBits(ordinal));
+		} else {
+			ArrayContainer container = new ArrayContainer();
+			container.add(lowBits(ordinal));
+			insertContainer(-pos - 1, key, container);
+		}
+	}
+
+	/**
+	 * @param ordinal the product ordinal
+	 * @return true if the ordinal is in the bitmap
+	 */
+	boolean contains(int ordinal) {
+		int pos = findContainer(highBits(ordinal));
+		return pos >= 0 && containers[pos].contains(lowBits(ordinal));
+	}
+
+	/**
+	 * @return number of ordinals in the bitmap
+	 */
+	int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < containerCount; i++) {
+			cardinality += containers[i].getCardinality();
+		}
+		return cardinality;
+	}
+
+	/**
+	 * @return true if no ordinals are in the bitmap
+	 */
+	boolean isEmpty() {
+		return containerCount == 0;
+	}
+
+	/**
+	 * Returns the union of this bitmap and another, neither input is modified.
+	 * @param other bitmap to merge with
+	 * @return new ProductBitmap containing the ordinals of both
+	 */
+	ProductBitmap or(ProductBitmap other) {
+		ProductBitmap result = new ProductBitmap();
+		int i = 0, j = 0;
+		while (i < containerCount && j < other.containerCount) {
+			char a = keys[i];
+			char b = other.keys[j];
+			if (a < b) {
+				result.appendContainer(a, containers[i++].copy());
+			} else if (b < a) {
+				result.appendContainer(b, other.containers[j++].copy());
+			} else {
+				result.appendContainer(a, containers[i++].or(other.containers[j++]));
+			}
+		}
+		while (i < containerCount) {
+			result.appendContainer(keys[i], containers[i++].copy());
+		}
+		while (j < other.containerCount) {
+			result.appendContainer(other.keys[j], other.containers[j++].copy());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the intersection of this bitmap and another, neither input is modified.
+	 * @param other bitmap to intersect with
+	 * @return new ProductBitmap containing the ordinals found in both
+	 */
+	ProductBitmap and(ProductBitmap other) {
+		ProductBitmap result = new ProductBitmap();
+		int i = 0, j = 0;
+		while (i < containerCount && j < other.containerCount) {
+			char a = keys[i];
+			char b = other.keys[j];
+			if (a < b) {
+				i++;
+			} else if (b < a) {
+				j++;
+			} else {
+				Container common = containers[i++].and(other.containers[j++]);
+				if (common.getCardinality() > 0) {
+					result.appendContainer(a, common);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ordinals of this bitmap which are not in another, neither input is modified.
+	 * @param other bitmap of the ordinals to leave out
+	 * @return new ProductBitmap containing the ordinals found only in this bitmap
+	 */
+	ProductBitmap andNot(ProductBitmap other) {
+		ProductBitmap result = new ProductBitmap();
+		int j = 0;
+		for (int i = 0; i < containerCount; i++) {
+			char a = keys[i];
+			while (j < other.containerCount && other.keys[j] < a) {
+				j++;
+			}
+			if (j < other.containerCount && other.keys[j] == a) {
+				Container remaining = containers[i].andNot(other.containers[j]);
+				if (remaining.getCardinality() > 0) {
+					result.appendContainer(a, remaining);
+				}
+			} else {
+				result.appendContainer(a, containers[i].copy());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Counts the ordinals in both this bitmap and another, without building the intersection.
+	 * @param other bitmap to intersect with
+	 * @return number of ordinals in both bitmaps
+	 */
+	int andCardinality(ProductBitmap other) {
+		int count = 0;
+		int i = 0, j = 0;
+		while (i < containerCount && j < other.containerCount) {
+			char a = keys[i];
+			char b = other.keys[j];
+			if (a < b) {
+				i++;
+			} else if (b < a) {
+				j++;
+			} else {
+				count += containers[i++].andCardinality(other.containers[j++]);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return iterator over the ordinals in increasing order
+	 */
+	PrimitiveIterator.OfInt iterator() {
+		return new PrimitiveIterator.OfInt() {
+			private int containerPos = 0;
+			private int valuePos = 0;
+			private int next = advance();
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public int nextInt() {
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+				int current = next;
+				next = advance();
+				return current;
+			}
+
+			// finds the next ordinal, valuePos is an array index or the next bit to check
+			private int advance() {
+				while (containerPos < containerCount) {
+					int low = containers[containerPos].nextValue(valuePos);
+					if (low >= 0) {
+						valuePos = containers[containerPos].positionAfter(valuePos, low);
+						return (keys[containerPos] << 16) | low;
+					}
+					containerPos++;
+					valuePos = 0;
+				}
+				return -1;
+			}
+		};
+	}
+
+	// private utility methods
+
+	private static char highBits(int ordinal) {
+		return (char) (ordinal >>> 16);
+	}
+
+	private static char lowBits(int ordinal) {
+		return (char) ordinal;
+	}
+
+	private int findContainer(char key) {
+		// ordinals are mostly appended, so check the last container first
+		if (containerCount > 0 && keys[containerCount - 1] == key) {
+			return containerCount - 1;
+		}
+		if (containerCount == 0 || keys[containerCount - 1] < key) {
+			// insertion point after the last container
+			return -containerCount - 1;
+		}
+		return Arrays.binarySearch(keys, 0, containerCount, key);
+	}
+
+	private void insertContainer(int pos, char key, Container container) {
+		if (containerCount == keys.length) {
+			keys = Arrays.copyOf(keys, containerCount * 2);
+			containers = Arrays.copyOf(containers, containerCount * 2);
+		}
+		System.arraycopy(keys, pos, keys, pos + 1, containerCount - pos);
+		System.arraycopy(containers, pos, containers, pos + 1, containerCount - pos);
+		keys[pos] = key;
+		containers[pos] = container;
+		containerCount++;
+	}
+
+	private void appendContainer(char key, Container container) {
+		insertContainer(containerCount, key, container);
+	}
+
+	/**
+	 * A Container holds the low 16 bits of the ordinals sharing the same high 16 bits.
+	 * Mutating operations return the container to use afterwards, as a container may
+	 * convert itself to the other representation when its cardinality crosses the threshold.
+	 */
+	private abstract static class Container {
+
+		abstract Container add(char value);
+
+		abstract boolean contains(char value);
+
+		abstract int getCardinality();
+
+		abstract Container and(Container other);
+
+		abstract int andCardinality(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container andNot(Container other);
+
+		abstract Container copy();
+
+		/**
+		 * @param position array index or bit to start the search from
+		 * @return the next value at or after the position, or -1 if none is left
+		 */
+		abstract int nextValue(int position);
+
+		/**
+		 * @param position the position the value was found from
+		 * @param value the value returned by nextValue
+		 * @return the position to continue the search from
+		 */
+		abstract int positionAfter(int position, int value);
+	}
+
+	/**
+	 * Sparse container, a sorted array of values.
+	 */
+	private static final class ArrayContainer extends Container {
+
+		private char[] values;
+		private int cardinality;
+
+		ArrayContainer() {
+			this.values = new char[4];
+			this.cardinality = 0;
+		}
+
+		ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			int pos;
+			if (cardinality == 0 || values[cardinality - 1] < value) {
+				// appending, the common case
+				pos = cardinality;
+			} else if (values[cardinality - 1] == value) {
+				// adding the last value again, as for a repeated trigram of the same product
+				return this;
+			} else {
+				pos = Arrays.binarySearch(values, 0, cardinality, value);
+				if (pos >= 0) {
+					return this;
+				}
+				pos = -pos - 1;
+			}
+			if (cardinality == ARRAY_CONTAINER_MAX) {
+				return toBitmapContainer().add(value);
+			}
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(Math.max(cardinality * 2, 4), ARRAY_CONTAINER_MAX));
+			}
+			System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+			values[pos] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			char[] common = new char[cardinality];
+			int count = 0;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0, j = 0;
+				while (i < cardinality && j < array.cardinality) {
+					char a = values[i];
+					char b = array.values[j];
+					if (a < b) {
+						i++;
+					} else if (b < a) {
+						j++;
+					} else {
+						common[count++] = a;
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						common[count++] = values[i];
+					}
+				}
+			}
+			return new ArrayContainer(common, count);
+		}
+
+		@Override
+		int andCardinality(Container other) {
+			int count = 0;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0, j = 0;
+				while (i < cardinality && j < array.cardinality) {
+					char a = values[i];
+					char b = array.values[j];
+					if (a < b) {
+						i++;
+					} else if (b < a) {
+						j++;
+					} else {
+						count++;
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+
+		@Override
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+			ArrayContainer array = (ArrayContainer) other;
+			char[] merged = new char[cardinality + array.cardinality];
+			int i = 0, j = 0, count = 0;
+			while (i < cardinality && j < array.cardinality) {
+				char a = values[i];
+				char b = array.values[j];
+				if (a < b) {
+					merged[count++] = a;
+					i++;
+				} else if (b < a) {
+					merged[count++] = b;
+					j++;
+				} else {
+					merged[count++] = a;
+					i++;
+					j++;
+				}
+			}
+			while (i < cardinality) {
+				merged[count++] = values[i++];
+			}
+			while (j < array.cardinality) {
+				merged[count++] = array.values[j++];
+			}
+			ArrayContainer result = new ArrayContainer(merged, count);
+			return (count > ARRAY_CONTAINER_MAX) ? result.toBitmapContainer() : result;
+		}
+
+		@Override
+		Container andNot(Container other) {
+			char[] remaining = new char[cardinality];
+			int count = 0;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int j = 0;
+				for (int i = 0; i < cardinality; i++) {
+					while (j < array.cardinality && array.values[j] < values[i]) {
+						j++;
+					}
+					if (j == array.cardinality || array.values[j] != values[i]) {
+						remaining[count++] = values[i];
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (!other.contains(values[i])) {
+						remaining[count++] = values[i];
+					}
+				}
+			}
+			return new ArrayContainer(remaining, count);
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+		}
+
+		@Override
+		int nextValue(int position) {
+			return (position < cardinality) ? values[position] : -1;
+		}
+
+		@Override
+		int positionAfter(int position, int value) {
+			return position + 1;
+		}
+
+		private BitmapContainer toBitmapContainer() {
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++) {
+				bitmap.add(values[i]);
+			}
+			return bitmap;
+		}
+	}
+
+	/**
+	 * Dense container, one bit per possible value.
+	 */
+	private static final class BitmapContainer extends Container {
+
+		private long[] words;
+		private int cardinality;
+
+		BitmapContainer() {
+			this.words = new long[BITMAP_WORDS];
+			this.cardinality = 0;
+		}
+
+		BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			long mask = 1L << value;
+			int index = value >>> 6;
+			if ((words[index] & mask) == 0) {
+				words[index] |= mask;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		void addRange(int from, int length) {
+			for (int value = from; value < from + length; value++) {
+				words[value >>> 6] |= 1L << value;
+			}
+			cardinality = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				cardinality += Long.bitCount(words[i]);
+			}
+		}
+
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			long[] otherWords = ((BitmapContainer) other).words;
+			long[] common = new long[BITMAP_WORDS];
+			int count = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				common[i] = words[i] & otherWords[i];
+				count += Long.bitCount(common[i]);
+			}
+			BitmapContainer result = new BitmapContainer(common, count);
+			return (count <= ARRAY_CONTAINER_MAX) ? result.toArrayContainer() : result;
+		}
+
+		@Override
+		int andCardinality(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.andCardinality(this);
+			}
+			long[] otherWords = ((BitmapContainer) other).words;
+			int count = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				count += Long.bitCount(words[i] & otherWords[i]);
+			}
+			return count;
+		}
+
+		@Override
+		Container or(Container other) {
+			long[] merged = Arrays.copyOf(words, BITMAP_WORDS);
+			if (other instanceof ArrayContainer) {
+				BitmapContainer result = new BitmapContainer(merged, cardinality);
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					result.add(array.values[i]);
+				}
+				return result;
+			}
+			long[] otherWords = ((BitmapContainer) other).words;
+			int count = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				merged[i] |= otherWords[i];
+				count += Long.bitCount(merged[i]);
+			}
+			return new BitmapContainer(merged, count);
+		}
+
+		@Override
+		Container andNot(Container other) {
+			long[] remaining = Arrays.copyOf(words, BITMAP_WORDS);
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					remaining[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					remaining[i] &= ~otherWords[i];
+				}
+			}
+			int count = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				count += Long.bitCount(remaining[i]);
+			}
+			BitmapContainer result = new BitmapContainer(remaining, count);
+			return (count <= ARRAY_CONTAINER_MAX) ? result.toArrayContainer() : result;
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(Arrays.copyOf(words, BITMAP_WORDS), cardinality);
+		}
+
+		@Override
+		int nextValue(int position) {
+			int index = position >>> 6;
+			if (index >= BITMAP_WORDS) {
+				return -1;
+			}
+			long word = words[index] & (-1L << position);
+			while (word == 0) {
+				if (++index == BITMAP_WORDS) {
+					return -1;
+				}
+				word = words[index];
+			}
+			return (index << 6) + Long.numberOfTrailingZeros(word);
+		}
+
+		@Override
+		int positionAfter(int position, int value) {
+			return value + 1;
+		}
+
+		private ArrayContainer toArrayContainer() {
+			char[] values = new char[Math.max(cardinality, 1)];
+			int count = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[count++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, count);
+		}
+	}
+
+}
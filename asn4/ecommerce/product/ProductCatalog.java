@@ -3,6 +3,7 @@ package cscie97.asn4.ecommerce.product;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 import cscie97.asn4.ecommerce.authentication.AccessDeniedException;
 import cscie97.asn4.ecommerce.authentication.InvalidAccessTokenException;
@@ -49,6 +50,30 @@ public interface ProductCatalog {
 	 */
 	public void addProduct(UUID authGuid, Product product) throws ImportException, AccessDeniedException, InvalidAccessTokenException;
 	
+	/**
+	 * Adds a batch of products to the Product Catalog if none already exists with any of their ids.
+	 * The access token is validated once for the whole batch, and the products are indexed together,
+	 * so the batch costs less than adding each product with addProduct. If any product fails the batch
+	 * is rejected as a whole, none of its products is added.
+	 * @param products the product objects, with distinct ids
+	 * @throws ImportException if a product id is repeated in the batch or already exists in the catalog
+	 * @throws AccessDeniedException 
+	 * @throws InvalidAccessTokenException 
+	 */
+	public void addProducts(UUID authGuid, List<Product> products) throws ImportException, AccessDeniedException, InvalidAccessTokenException;
+	
+	/**
+	 * Adds new products, replaces the products with the same id as updated ones and removes products by id,
+	 * all as a single change of the catalog. Only the added and replacing products are indexed, the replaced
+	 * and removed ones are left out of query results from then on.
+	 * @param products the new and updated product objects, with distinct ids
+	 * @param removedProductIds ids of the products to remove, ids not in the catalog are ignored
+	 * @throws ImportException if a product id is repeated in the batch or also being removed
+	 * @throws AccessDeniedException 
+	 * @throws InvalidAccessTokenException 
+	 */
+	public void upsertProducts(UUID authGuid, List<Product> products, Set<String> removedProductIds) throws ImportException, AccessDeniedException, InvalidAccessTokenException;
+	
 	/**
 	 * Process query on ProductCatalog, tries to match criteria to exist Products in Catalog.
 	 * @param categorySet query categories to match
@@ -59,10 +84,123 @@ public interface ProductCatalog {
 	 * @param countryCode query country to match
 	 * @param deviceId query device to match
 	 * @param contentTypeSet query contentType to match
-	 * @return
+	 * @return the matching products, in the order they were added, as an unmodifiable list
 	 */
 	public List<Product> queryProducts(Set<String> categorySet, String textSearch, int minimumRating, float maxPrice, Set<String> languageSet, String countryCode, String deviceId, Set<String> contentTypeSet);
 	
+	/**
+	 * Process query on ProductCatalog with typo tolerant text search. With maxEdits above 0 the text is not
+	 * searched as is, each word of it must instead be within maxEdits edits (insertions, deletions,
+	 * substitutions or swaps of adjacent letters) of a word of the product name or author, ignoring case. Words of up to 2 letters must
+	 * match exactly and words of up to 5 letters within 1 edit.
+	 * @param categorySet query categories to match
+	 * @param textSearch query text to find
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 * @param maxEdits 0 to search the text as queryProducts does, otherwise highest edit distance of a word, at most 2
+	 * @return the matching products, in the order they were added, as an unmodifiable list
+	 */
+	public List<Product> queryProducts(Set<String> categorySet, String textSearch, int minimumRating, float maxPrice, Set<String> languageSet, String countryCode, String deviceId, Set<String> contentTypeSet, int maxEdits);
+	
+	/**
+	 * Process query on ProductCatalog, returning a single page of the matching Products in sort order.
+	 * Only the products up to the end of the page are kept while matching, so showing the first page of
+	 * a broad query does not build the full result list.
+	 * @param categorySet query categories to match
+	 * @param textSearch query text to find
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 * @param sortOrder order of the results, must not be null
+	 * @param offset number of matching products to skip, negative values are treated as 0
+	 * @param limit max number of products in the page, negative values are treated as 0
+	 * @return page of the matching products, with the total number of matching products
+	 * @throws NullPointerException if sortOrder is null
+	 */
+	public ProductPage queryProducts(Set<String> categorySet, String textSearch, int minimumRating, float maxPrice, Set<String> languageSet, String countryCode, String deviceId, Set<String> contentTypeSet,
+			ProductSortOrder sortOrder, int offset, int limit);
+	
+	/**
+	 * Process query on ProductCatalog, returning the matching Products together with the number of them
+	 * having each category, language, country and content type, counted in the same query.
+	 * @param categorySet query categories to match
+	 * @param textSearch query text to find
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 * @return the matching products and the facet counts
+	 */
+	public FacetedProductResult queryProductsWithFacets(Set<String> categorySet, String textSearch, int minimumRating, float maxPrice, Set<String> languageSet, String countryCode, String deviceId, Set<String> contentTypeSet);
+	
+	/**
+	 * Process query on ProductCatalog, returning the matching Products together with a profile of the query:
+	 * whether the results came from the query cache, and otherwise the order the criteria were evaluated in,
+	 * how each was answered, the number of products going in and out of it and the time it took.
+	 * @param categorySet query categories to match
+	 * @param textSearch query text to find
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 * @return the matching products and the query profile
+	 */
+	public QueryProfile queryProductsWithProfile(Set<String> categorySet, String textSearch, int minimumRating, float maxPrice, Set<String> languageSet, String countryCode, String deviceId, Set<String> contentTypeSet);
+	
+	/**
+	 * Process query on ProductCatalog, ranking the products by the BM25 relevance of their name and description
+	 * to the words of the search text, ignoring case. Products containing any word of the text and matching the
+	 * other criteria are ranked, and only the best ones are returned.
+	 * @param categorySet query categories to match
+	 * @param textSearch query text to rank by
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 * @param limit max number of products to return
+	 * @return the most relevant products, most relevant first, products with the same score in the order they were added
+	 */
+	public List<Product> queryProductsByRelevance(Set<String> categorySet, String textSearch, int minimumRating, float maxPrice, Set<String> languageSet, String countryCode, String deviceId, Set<String> contentTypeSet, int limit);
+	
+	/**
+	 * Process query on ProductCatalog, returning the matching Products as a lazily evaluated stream.
+	 * The criteria are only checked as the stream is consumed, so exporting the results of a broad query
+	 * does not hold all of them in memory. Products are returned in the order they were added to the catalog,
+	 * products added after the stream is created are not included.
+	 * @param categorySet query categories to match
+	 * @param textSearch query text to find
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 * @return stream of the matching products
+	 */
+	public Stream<Product> streamProducts(Set<String> categorySet, String textSearch, int minimumRating, float maxPrice, Set<String> languageSet, String countryCode, String deviceId, Set<String> contentTypeSet);
+	
+	/**
+	 * Returns type-ahead completions of a product name, the best rated products whose name starts with
+	 * the prefix, ignoring case. Products added to the catalog are completed as soon as addProduct returns.
+	 * @param prefix start of the product name
+	 * @param limit maximum number of products to return
+	 * @return the products, highest rating first, products with the same rating by name
+	 */
+	public List<Product> completeProductName(String prefix, int limit);
+	
 	/**
 	 * Returns info about a valid country if it exists
 	 * @param countryId to search for
@@ -1,10 +1,21 @@
 package cscie97.asn4.ecommerce.product;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import cscie97.asn4.ecommerce.authentication.AccessDeniedException;
 import cscie97.asn4.ecommerce.authentication.AuthenticationService;
@@ -13,6 +24,11 @@ import cscie97.asn4.ecommerce.authentication.InvalidAccessTokenException;
 
 /**
  * Implementation class of the ProductCatalog API
+ * Queries read the current CatalogSnapshot without locking, so they are never blocked by an import.
+ * Changes are serialized on the catalog and publish a new snapshot, added products are appended to the
+ * tail of the snapshot and merged into a new CatalogIndex once the tail is full. Updated products are
+ * appended in the same way, the ordinals of the products they replace are only marked as removed until
+ * the removed products make up a large enough share of the catalog for the indexes to be rebuilt.
  * 
  * @author Frank O'Connor
  *
@@ -21,9 +37,37 @@ public class ProductCatalogImpl implements ProductCatalog {
 	
 	// single instance of ProductCatalog
 	private static ProductCatalog instance = null;
+	// default bounds of the query result cache
+	private static final int DEFAULT_CACHED_QUERIES = 1024;
+	private static final int DEFAULT_CACHED_PRODUCTS = 1000000;
+	// default catalog size from which queries are evaluated in parallel
+	private static final int DEFAULT_PARALLEL_QUERY_THRESHOLD = 250000;
+	// number of products in each chunk of a parallel query, a multiple of the bitmap container size
+	private static final int PARALLEL_QUERY_CHUNK_SIZE = 1 << 16;
+	// number of products evaluated at a time by a streamed query, also a multiple of the bitmap container size
+	private static final int STREAM_QUERY_CHUNK_SIZE = 1 << 16;
+	// the snapshot tail holds at least this many products, or 1/TAIL_FRACTION of the indexed products, before
+	// being merged into a new index, so merging costs a constant number of array copies per added product
+	private static final int MIN_TAIL_SIZE = 1024;
+	private static final int TAIL_FRACTION = 64;
+	// the indexes are rebuilt without the replaced and removed products once they hold more than
+	// 1/REMOVED_FRACTION of the ordinals, so queries never filter out more than that share of their matches
+	private static final int REMOVED_FRACTION = 8;
 	private List <Country> validCountries;
 	private List <Device> validDevices;
 	private Set <Product> products;
+	// countries, devices and products keyed by id, for constant time lookups and uniqueness checks
+	private Map<String, Country> countriesById;
+	private Map<String, Device> devicesById;
+	private Map<String, Product> productsById;
+	// ordinal of each product in the snapshot keyed by id, so the products replaced by an upsert are found
+	// without a pass over the ordinals, only used holding the catalog lock
+	private Map<String, Integer> ordinalsById;
+	// products by ordinal with the indexes used to evaluate queries, replaced on every change, the
+	// version of the snapshot is incremented on every change so cached query results are not served stale
+	private volatile CatalogSnapshot snapshot;
+	private QueryResultCache queryCache;
+	private int parallelQueryThreshold;
 	private AuthenticationService authService;
 	
 	/**
@@ -32,9 +76,16 @@ public class ProductCatalogImpl implements ProductCatalog {
 	 * which prevents instantiation from classes other than getInstance
 	 */
 	private ProductCatalogImpl() {
-		validCountries = new ArrayList<Country>();
-		validDevices = new ArrayList<Device>();
-		products = new HashSet<Product>();
+		validCountries = new CopyOnWriteArrayList<Country>();
+		validDevices = new CopyOnWriteArrayList<Device>();
+		products = Collections.newSetFromMap(new ConcurrentHashMap<Product, Boolean>());
+		countriesById = new ConcurrentHashMap<String, Country>();
+		devicesById = new ConcurrentHashMap<String, Device>();
+		productsById = new ConcurrentHashMap<String, Product>();
+		ordinalsById = new HashMap<String, Integer>();
+		snapshot = newSnapshot(new CatalogIndex(), new ProductBitmap(), 0);
+		queryCache = new QueryResultCache(DEFAULT_CACHED_QUERIES, DEFAULT_CACHED_PRODUCTS);
+		parallelQueryThreshold = DEFAULT_PARALLEL_QUERY_THRESHOLD;
 		this.authService = AuthenticationServiceImpl.getInstance();
 	}
 	
@@ -55,121 +106,352 @@ public class ProductCatalogImpl implements ProductCatalog {
 	 */
 	public List<Product> queryProducts(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
 			String countryCode, String deviceId, Set<String> contentTypeSet) {
+		return queryProducts(categorySet, searchText, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet, 0);
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#queryProducts(java.util.Set, java.lang.String, int, float, java.util.Set, java.lang.String, java.lang.String, java.util.Set, int)
+	 */
+	@Override
+	public List<Product> queryProducts(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet, int maxEdits) {
 		
-		// list of all Products in the ProductCatalog
-		Set<Product> completeProductSet = getProducts();
-		// result list of query
-		List<Product> resultProductList = new ArrayList<Product>();
-		 
-		// 
-		for (Product product: completeProductSet) {
-			boolean addProduct = true;
-			// checking for matching categories
-			if (categorySet.size() > 0) {
-				HashSet<String> catIntersectionSet =  new HashSet<String>(categorySet);
-				// getting intersection of query categories those of the products
-				catIntersectionSet.retainAll(product.getCategories());
-				if(catIntersectionSet.size()==0){
-					// does not match query
-					addProduct =  false;	
-				}
-			}
-			
-			// checking text search
-			if (addProduct) {
-				if (hasText(searchText)) {
-					addProduct = ((product.getProductName().indexOf(searchText) >= 0)  || (product.getDescription().indexOf(searchText) >= 0));
+		// checking for a cached result of the same query at the current catalog version
+		ProductQuery query = new ProductQuery(categorySet, searchText, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet, maxEdits);
+		CatalogSnapshot current = snapshot;
+		List<Product> cachedResult = queryCache.get(query, current.getVersion());
+		if (cachedResult != null) {
+			return cachedResult;
+		}
+		
+		// result list of query, unmodifiable as it is shared with later hits of the cache
+		List<Product> resultProductList = Collections.unmodifiableList(current.materialize(findMatches(current, query)));
+		
+		queryCache.put(query, current.getVersion(), resultProductList);
+		return resultProductList;
+	}
+	
+	/**
+	 * Processes a batch of queries against the same snapshot of the catalog, sharing work between them.
+	 * Equal queries are evaluated once, and the first criteria of the queries, which match the whole catalog,
+	 * are evaluated once for all queries starting with the same criteria, the scans in a single pass.
+	 * The results are the same as querying each one with queryProducts.
+	 * @param queries the queries of the batch
+	 * @return list of results of each query, in the order of the queries
+	 */
+	List<List<Product>> queryProductsBatch(List<ProductQuery> queries) {
+		CatalogSnapshot current = snapshot;
+		// evaluating each distinct query not found in the cache
+		Map<ProductQuery, List<Product>> distinctResults = new HashMap<ProductQuery, List<Product>>();
+		List<ProductQuery> pending = new ArrayList<ProductQuery>();
+		for (ProductQuery query : queries) {
+			if (!distinctResults.containsKey(query)) {
+				List<Product> cachedResult = queryCache.get(query, current.getVersion());
+				distinctResults.put(query, cachedResult);
+				if (cachedResult == null) {
+					pending.add(query);
 				}
 			}
-			 
-			// checking minimum rating
-			if (addProduct) {
-				addProduct = (product.getRating() >= minimumRating);
-			}
-			 
-			// checking max price
-			if (addProduct) {
-				addProduct = (product.getPrice() <= maxPrice);
-			}
-			 
-			// checking language list
-			if (addProduct && languageSet.size() > 0) {
-				HashSet<String> langIntersectionSet =  new HashSet<String>(languageSet);
-				// getting intersection of query languages those of the products
-				langIntersectionSet.retainAll(product.getLanguages());
-				if(langIntersectionSet.size()==0){
-					// does not match query
-					addProduct =  false;	
+		}
+		QueryPlanner planner = current.getPlanner();
+		List<List<QueryPredicate>> plans = new ArrayList<List<QueryPredicate>>(pending.size());
+		for (ProductQuery query : pending) {
+			plans.add(planner.plan(query));
+		}
+		List<ProductBitmap> matches = planner.executeBatch(plans);
+		for (int i = 0; i < pending.size(); i++) {
+			ProductQuery query = pending.get(i);
+			List<Product> resultProductList = Collections.unmodifiableList(current.materialize(current.withTailMatches(query, matches.get(i))));
+			queryCache.put(query, current.getVersion(), resultProductList);
+			distinctResults.put(query, resultProductList);
+		}
+		
+		List<List<Product>> results = new ArrayList<List<Product>>(queries.size());
+		for (ProductQuery query : queries) {
+			results.add(distinctResults.get(query));
+		}
+		return results;
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#queryProducts(java.util.Set, java.lang.String, int, float, java.util.Set, java.lang.String, java.lang.String, java.util.Set, cscie97.asn4.ecommerce.product.ProductSortOrder, int, int)
+	 */
+	@Override
+	public ProductPage queryProducts(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet, ProductSortOrder sortOrder, int offset, int limit) {
+		
+		// a page is the first products in sort order, there is no unsorted page
+		Objects.requireNonNull(sortOrder, "sortOrder");
+		offset = Math.max(0, offset);
+		limit = Math.max(0, limit);
+		ProductQuery query = new ProductQuery(categorySet, searchText, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet);
+		CatalogSnapshot current = snapshot;
+		ProductBitmap matches = findMatches(current, query);
+		
+		// only the first offset + limit matches in sort order are kept, in a bounded heap
+		int[] pageOrdinals = new TopKSelector(current, sortOrder).selectPage(matches, offset, limit);
+		List<Product> pageProducts = new ArrayList<Product>(pageOrdinals.length);
+		for (int ordinal : pageOrdinals) {
+			pageProducts.add(current.getProduct(ordinal));
+		}
+		return new ProductPage(pageProducts, sortOrder, offset, limit, matches.getCardinality());
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#queryProductsWithFacets(java.util.Set, java.lang.String, int, float, java.util.Set, java.lang.String, java.lang.String, java.util.Set)
+	 */
+	@Override
+	public FacetedProductResult queryProductsWithFacets(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet) {
+		
+		ProductQuery query = new ProductQuery(categorySet, searchText, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet);
+		CatalogSnapshot current = snapshot;
+		ProductBitmap matches = findMatches(current, query);
+		
+		// each facet count is the size of the intersection of the matches with the bitmap of the value
+		CatalogIndex index = current.getIndex();
+		Map<String, Integer> categoryCounts = new TreeMap<String, Integer>();
+		Map<String, Integer> languageCounts = new TreeMap<String, Integer>();
+		Map<String, Integer> countryCounts = new TreeMap<String, Integer>();
+		Map<String, Integer> contentTypeCounts = new TreeMap<String, Integer>();
+		index.getCategoryIndex().countMatches(matches, categoryCounts);
+		index.getLanguageIndex().countMatches(matches, languageCounts);
+		index.getCountryIndex().countMatches(matches, countryCounts);
+		index.getContentTypeIndex().countMatches(matches, contentTypeCounts);
+		current.countTailFacets(matches, categoryCounts, languageCounts, countryCounts, contentTypeCounts);
+		
+		return new FacetedProductResult(current.materialize(matches), categoryCounts, languageCounts, countryCounts, contentTypeCounts);
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#queryProductsWithProfile(java.util.Set, java.lang.String, int, float, java.util.Set, java.lang.String, java.lang.String, java.util.Set)
+	 */
+	@Override
+	public QueryProfile queryProductsWithProfile(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet) {
+		
+		long start = System.nanoTime();
+		ProductQuery query = new ProductQuery(categorySet, searchText, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet);
+		CatalogSnapshot current = snapshot;
+		List<PredicateProfile> predicateProfiles = new ArrayList<PredicateProfile>();
+		List<Product> cachedResult = queryCache.get(query, current.getVersion());
+		if (cachedResult != null) {
+			return new QueryProfile(query.toString(), cachedResult, current.getVersion(), true, predicateProfiles, 0, 0, 0,
+					System.nanoTime() - start);
+		}
+		
+		// the predicates are evaluated one after the other on the whole catalog, even when the query
+		// would run in parallel, so the time of each one can be measured
+		ProductBitmap indexedMatches = current.getPlanner().executeProfiled(current.getPlanner().plan(query), predicateProfiles);
+		long tailStart = System.nanoTime();
+		ProductBitmap tailMatches = current.matchTail(query, current.getIndexedCount(), current.getProductCount());
+		long tailTime = System.nanoTime() - tailStart;
+		List<Product> resultProductList = Collections.unmodifiableList(
+				current.materialize(current.withoutRemoved(tailMatches.isEmpty() ? indexedMatches : indexedMatches.or(tailMatches))));
+		
+		queryCache.put(query, current.getVersion(), resultProductList);
+		return new QueryProfile(query.toString(), resultProductList, current.getVersion(), false, predicateProfiles,
+				current.getTailCount(), tailMatches.getCardinality(), tailTime, System.nanoTime() - start);
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#queryProductsByRelevance(java.util.Set, java.lang.String, int, float, java.util.Set, java.lang.String, java.lang.String, java.util.Set, int)
+	 */
+	@Override
+	public List<Product> queryProductsByRelevance(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet, int limit) {
+		
+		if (searchText == null || searchText.trim().isEmpty()) {
+			return new ArrayList<Product>();
+		}
+		// the other criteria filter the ranked products, matching every product when none is given
+		ProductQuery filterQuery = new ProductQuery(categorySet, "", minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet);
+		CatalogSnapshot current = snapshot;
+		ProductBitmap filter = current.getPlanner().plan(filterQuery).isEmpty() ? null : findMatches(current, filterQuery);
+		return current.rankByRelevance(searchText, filter, limit);
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#streamProducts(java.util.Set, java.lang.String, int, float, java.util.Set, java.lang.String, java.lang.String, java.util.Set)
+	 */
+	@Override
+	public Stream<Product> streamProducts(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet) {
+		
+		ProductQuery query = new ProductQuery(categorySet, searchText, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet);
+		// the snapshot and plan are fixed now, the predicates are evaluated a chunk at a time as the stream is consumed
+		CatalogSnapshot current = snapshot;
+		List<QueryPredicate> plan = current.getPlanner().plan(query);
+		QueryResultSpliterator spliterator = new QueryResultSpliterator(current, query, plan, STREAM_QUERY_CHUNK_SIZE,
+				0, current.getProductCount());
+		return StreamSupport.stream(spliterator, false);
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#completeProductName(java.lang.String, int)
+	 */
+	@Override
+	public List<Product> completeProductName(String prefix, int limit) {
+		return snapshot.completeProductName((prefix == null) ? "" : prefix, limit);
+	}
+	
+	/**
+	 * Evaluates a query against a snapshot of the catalog.
+	 * @param current the snapshot to query
+	 * @param query the query criteria
+	 * @return bitmap of the matching product ordinals
+	 */
+	private ProductBitmap findMatches(CatalogSnapshot current, ProductQuery query) {
+		// the planner orders the query criteria by their estimated cost and selectivity,
+		// each criteria then narrows down the bitmap of candidates left by the previous one
+		QueryPlanner planner = current.getPlanner();
+		List<QueryPredicate> plan = planner.plan(query);
+		ProductBitmap indexedMatches;
+		if (current.getIndexedCount() >= parallelQueryThreshold) {
+			// large catalog, evaluating chunks of the catalog in parallel
+			indexedMatches = planner.executeParallel(plan, PARALLEL_QUERY_CHUNK_SIZE);
+		} else {
+			indexedMatches = planner.execute(plan);
+		}
+		// products added since the index was built are checked one by one
+		return current.withTailMatches(query, indexedMatches);
+	}
+	
+	/**
+	 * Creates a snapshot of an index with an empty tail.
+	 * @param index the index of the products
+	 * @param removed ordinals of the replaced and removed products in the index
+	 * @param version catalog version of the snapshot
+	 * @return new CatalogSnapshot
+	 */
+	private CatalogSnapshot newSnapshot(CatalogIndex index, ProductBitmap removed, long version) {
+		int tailSize = Math.max(MIN_TAIL_SIZE, index.getProductCount() / TAIL_FRACTION);
+		return new CatalogSnapshot(index, new QueryPlanner(index), new Product[tailSize], 0, removed, version);
+	}
+	
+	/**
+	 * Publishes a snapshot with a product appended to the tail, merging the tail into a new index first if it is full.
+	 * Must be called holding the catalog lock.
+	 * @param product the product being added
+	 */
+	private void appendProduct(Product product) {
+		CatalogSnapshot current = snapshot;
+		// merging the tail into the index keeps the ordinals
+		ordinalsById.put(product.getProductId(), current.getProductCount());
+		Product[] tail = current.getTail();
+		if (current.getTailCount() == tail.length) {
+			// the new index shares the unchanged parts of the current one, which queries may still be using
+			CatalogIndex merged = current.getIndex().withProducts(Arrays.asList(tail));
+			current = newSnapshot(merged, current.getRemoved(), current.getVersion());
+			tail = current.getTail();
+		}
+		// the slot is beyond the tail of any published snapshot, so no query can be reading it
+		tail[current.getTailCount()] = product;
+		snapshot = new CatalogSnapshot(current.getIndex(), current.getPlanner(), tail, current.getTailCount() + 1, current.getRemoved(),
+				current.getVersion() + 1);
+	}
+	
+	/**
+	 * Publishes a snapshot with a batch of products appended to the tail, as a single new version.
+	 * If the tail cannot hold them all, the tail and the batch are merged into a new index at once.
+	 * Must be called holding the catalog lock.
+	 * @param products the products being added
+	 * @param removed ordinals of the replaced and removed products in the new snapshot
+	 */
+	private void appendProducts(List<Product> products, ProductBitmap removed) {
+		CatalogSnapshot current = snapshot;
+		int ordinal = current.getProductCount();
+		for (Product product : products) {
+			ordinalsById.put(product.getProductId(), ordinal++);
+		}
+		Product[] tail = current.getTail();
+		int tailCount = current.getTailCount();
+		if (tailCount + products.size() > tail.length) {
+			List<Product> unindexed = new ArrayList<Product>(tailCount + products.size());
+			unindexed.addAll(Arrays.asList(tail).subList(0, tailCount));
+			unindexed.addAll(products);
+			snapshot = newSnapshot(current.getIndex().withProducts(unindexed), removed, current.getVersion() + 1);
+			return;
+		}
+		// the slots are beyond the tail of any published snapshot, so no query can be reading them
+		for (Product product : products) {
+			tail[tailCount++] = product;
+		}
+		snapshot = new CatalogSnapshot(current.getIndex(), current.getPlanner(), tail, tailCount, removed, current.getVersion() + 1);
+	}
+	
+	/**
+	 * Publishes a snapshot with a batch of products appended and the ordinals of the products they replace,
+	 * or which are removed, marked as removed, as a single new version. Once the removed products hold too
+	 * large a share of the ordinals, the indexes are rebuilt from the remaining products instead.
+	 * Must be called holding the catalog lock.
+	 * @param products the products being added
+	 * @param replacedIds the ids of the products being replaced or removed
+	 */
+	private void replaceProducts(List<Product> products, Set<String> replacedIds) {
+		CatalogSnapshot current = snapshot;
+		int productCount = current.getProductCount();
+		ProductBitmap removed = current.getRemoved();
+		if (!replacedIds.isEmpty()) {
+			// the ordinals are looked up before the products replacing them take over their ids
+			int[] ordinals = new int[replacedIds.size()];
+			int replacedCount = 0;
+			for (String productId : replacedIds) {
+				Integer ordinal = ordinalsById.remove(productId);
+				// a product claimed by a concurrent addProduct, but not yet added, has no ordinal
+				if (ordinal != null) {
+					ordinals[replacedCount++] = ordinal;
 				}
 			}
-			 
-			// checking country code
-			if (addProduct) {
-				if (hasText(countryCode)) {
-					addProduct = false;
-					for (Country country : product.getCountries()) {
-						if(country.getCountryId().equals(countryCode)){
-							addProduct = true;
-							break;
-						}
-					}
-				}
+			Arrays.sort(ordinals, 0, replacedCount);
+			ProductBitmap replacedOrdinals = new ProductBitmap();
+			for (int i = 0; i < replacedCount; i++) {
+				replacedOrdinals.add(ordinals[i]);
 			}
-			 
-			// checking device id
-			if (addProduct) {
-				if (hasText(deviceId)) {
-					addProduct = false;
-					for (Device device : product.getDevices()) {
-						if(device.getDeviceId().equals(deviceId)){
-							addProduct = true;
-							break;
-						}
-					}
+			removed = removed.or(replacedOrdinals);
+		}
+		if ((long) removed.getCardinality() * REMOVED_FRACTION > productCount + products.size()) {
+			List<Product> remaining = new ArrayList<Product>(productCount - removed.getCardinality() + products.size());
+			for (int ordinal = 0; ordinal < productCount; ordinal++) {
+				if (!removed.contains(ordinal)) {
+					remaining.add(current.getProduct(ordinal));
 				}
 			}
-			 
-			// check content type list
-			if (addProduct && contentTypeSet.size() > 0) {
-				
-				addProduct = false;	// default to false
-				if(product instanceof Application){
-					if(contentTypeSet.contains("application")){
-						addProduct = true;
-					}
-				} else if (product instanceof RingTone){
-					if(contentTypeSet.contains("ringtone")){
-						addProduct = true;
-					}
-				} else if (product instanceof Wallpaper){
-					if(contentTypeSet.contains("wallpaper")){
-						addProduct = true;
-					}
-				}				
-			}
-			 
-			// finally, if all checks passed, add the product to the result set.
-			if (addProduct) {
-				resultProductList.add(product);
-			}
-		}		
-		
-		return resultProductList;
+			remaining.addAll(products);
+			ordinalsById = getOrdinalsById(remaining);
+			snapshot = newSnapshot(new CatalogIndex().withProducts(remaining), new ProductBitmap(), current.getVersion() + 1);
+			return;
+		}
+		appendProducts(products, removed);
+	}
+	
+	/**
+	 * @param products the products of a new index, in ordinal order
+	 * @return id -> ordinal of the products
+	 */
+	private static Map<String, Integer> getOrdinalsById(List<Product> products) {
+		Map<String, Integer> ordinals = new HashMap<String, Integer>(products.size() * 4 / 3 + 1);
+		for (int ordinal = 0; ordinal < products.size(); ordinal++) {
+			ordinals.put(products.get(ordinal).getProductId(), ordinal);
+		}
+		return ordinals;
+	}
+	
+	/**
+	 * Publishes a snapshot of the same products with the next version, after a change to the countries or devices.
+	 * Must be called holding the catalog lock.
+	 */
+	private void incrementVersion() {
+		snapshot = snapshot.withVersion(snapshot.getVersion() + 1);
 	}
 	
-
 	
 	/* (non-Javadoc)
 	 * @see cscie97.asn2.ecommerce.product.ProductCatalog#getValidCountry(java.lang.String)
 	 */
 	@Override
 	public Country getValidCountry(String countryId){
-		for(Country validCountry : getValidCountries()){
-			if(validCountry.getCountryId().equals(countryId)){
-				return validCountry;
-			}
-		}
-		return null;
+		return (countryId != null) ? countriesById.get(countryId) : null;
 	}
 	
 	/* (non-Javadoc)
@@ -177,12 +459,7 @@ public class ProductCatalogImpl implements ProductCatalog {
 	 */
 	@Override
 	public Device getValidDevice(String deviceId){		// maybe should be private
-		for(Device validDevice : getValidDevices()){
-			if(validDevice.getDeviceId().equals(deviceId)){
-				return validDevice;
-			}
-		}
-		return null;
+		return (deviceId != null) ? devicesById.get(deviceId) : null;
 	}
 
 	/* (non-Javadoc)
@@ -191,31 +468,123 @@ public class ProductCatalogImpl implements ProductCatalog {
 	@Override
 	public void addProduct(UUID authGuid, Product product) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
 		if(authService.validateAccessToken(authGuid, "create_product")){
-			// check uniqueness of productId
-			for (Product existingProduct : getProducts()) {
-				if(existingProduct.getProductId().equals(product.getProductId())){
+			// check uniqueness of productId, claiming the id in the same step
+			if(productsById.putIfAbsent(product.getProductId(), product) != null){
+				throw new ImportException("Existing ProductId", "", 0, "", new Exception());
+			}
+			synchronized (this) {
+				// unless a concurrent upsertProducts replaced or removed the product since its id was claimed
+				if (productsById.get(product.getProductId()) == product) {
+					this.getProducts().add(product);
+					appendProduct(product);
+				}
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#addProducts(java.util.UUID, java.util.List)
+	 */
+	@Override
+	public void addProducts(UUID authGuid, List<Product> products) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+		if(authService.validateAccessToken(authGuid, "create_product")){
+			// check uniqueness of the productIds within the batch and in the catalog before adding any product
+			Set<String> batchIds = new HashSet<String>();
+			for (Product product : products) {
+				if(!batchIds.add(product.getProductId()) || productsById.containsKey(product.getProductId())){
 					throw new ImportException("Existing ProductId", "", 0, "", new Exception());
 				}
 			}
-			this.getProducts().add(product);
+			// claiming the ids, releasing those already claimed if a concurrent addProduct took one first
+			for (int i = 0; i < products.size(); i++) {
+				if(productsById.putIfAbsent(products.get(i).getProductId(), products.get(i)) != null){
+					for (int j = 0; j < i; j++) {
+						productsById.remove(products.get(j).getProductId(), products.get(j));
+					}
+					throw new ImportException("Existing ProductId", "", 0, "", new Exception());
+				}
+			}
+			if (products.isEmpty()) {
+				return;
+			}
+			synchronized (this) {
+				// leaving out the products a concurrent upsertProducts replaced or removed since their ids were claimed
+				List<Product> claimed = new ArrayList<Product>(products.size());
+				for (Product product : products) {
+					if (productsById.get(product.getProductId()) == product) {
+						claimed.add(product);
+					}
+				}
+				this.getProducts().addAll(claimed);
+				appendProducts(claimed, snapshot.getRemoved());
+			}
 		}
 	}
-
+	
+	/* (non-Javadoc)
+	 * @see cscie97.asn4.ecommerce.product.ProductCatalog#upsertProducts(java.util.UUID, java.util.List, java.util.Set)
+	 */
+	@Override
+	public void upsertProducts(UUID authGuid, List<Product> products, Set<String> removedProductIds) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
+		if(authService.validateAccessToken(authGuid, "create_product")){
+			// check uniqueness of the productIds within the batch before changing any product
+			Set<String> batchIds = new HashSet<String>();
+			for (Product product : products) {
+				if(!batchIds.add(product.getProductId()) || removedProductIds.contains(product.getProductId())){
+					throw new ImportException("Duplicate ProductId", "", 0, "", new Exception());
+				}
+			}
+			synchronized (this) {
+				// the replaced products are compared by reference, as Product does not override equals
+				Set<Product> replaced = Collections.newSetFromMap(new IdentityHashMap<Product, Boolean>());
+				Set<String> replacedIds = new HashSet<String>();
+				for (Product product : products) {
+					Product previous = productsById.put(product.getProductId(), product);
+					if (previous != null) {
+						replaced.add(previous);
+						replacedIds.add(product.getProductId());
+					}
+				}
+				for (String productId : removedProductIds) {
+					Product previous = productsById.remove(productId);
+					if (previous != null) {
+						replaced.add(previous);
+						replacedIds.add(productId);
+					}
+				}
+				if (products.isEmpty() && replaced.isEmpty()) {
+					return;
+				}
+				this.getProducts().removeAll(replaced);
+				this.getProducts().addAll(products);
+				replaceProducts(products, replacedIds);
+			}
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see cscie97.asn2.ecommerce.product.ProductCatalog#addCountry(java.lang.String, java.lang.String, java.lang.String, boolean)
 	 */
 	@Override
 	public void addCountry(UUID authGuid, String countryId, String countryName, boolean isExportOpen) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
 		if(authService.validateAccessToken(authGuid, "create_country")){
+			// the id is the key of the country map, so must be set before the map is touched
+			if(countryId == null || countryId.trim().isEmpty()){
+				throw new ImportException("Invalid CountryId", "", 0, "", new Exception());
+			}
 			// check uniqueness of countryId
-			for (Country existingCountry : validCountries) {
-				if(existingCountry.getCountryId().equals(countryId)){
-					throw new ImportException("Existing CountryId", "", 0, "", new Exception());
-				}
+			if(countriesById.containsKey(countryId)){
+				throw new ImportException("Existing CountryId", "", 0, "", new Exception());
 			}
 			// validated in the constructor
 			Country country = new Country(countryId, countryName, isExportOpen);
+			if(countriesById.putIfAbsent(countryId, country) != null){
+				throw new ImportException("Existing CountryId", "", 0, "", new Exception());
+			}
 			this.validCountries.add(country);
+			synchronized (this) {
+				incrementVersion();
+			}
 		}
 	}
 
@@ -225,15 +594,23 @@ public class ProductCatalogImpl implements ProductCatalog {
 	@Override
 	public void addDevice(UUID authGuid, String deviceId, String deviceName, String manufacturer) throws ImportException, AccessDeniedException, InvalidAccessTokenException {
 		if(authService.validateAccessToken(authGuid, "create_device")){
+			// the id is the key of the device map, so must be set before the map is touched
+			if(deviceId == null || deviceId.trim().isEmpty()){
+				throw new ImportException("Invalid DeviceId", "", 0, "", new Exception());
+			}
 			// check uniqueness of deviceId
-			for (Device existingDevice : validDevices) {
-				if(existingDevice.getDeviceId().equals(deviceId)){
-					throw new ImportException("Existing DeviceId", "", 0, "", new Exception());
-				}
+			if(devicesById.containsKey(deviceId)){
+				throw new ImportException("Existing DeviceId", "", 0, "", new Exception());
 			}
 	
 			Device device = new Device(deviceId, deviceName, manufacturer);
+			if(devicesById.putIfAbsent(deviceId, device) != null){
+				throw new ImportException("Existing DeviceId", "", 0, "", new Exception());
+			}
 			this.validDevices.add(device);
+			synchronized (this) {
+				incrementVersion();
+			}
 		}
 	}
 	
@@ -243,6 +620,14 @@ public class ProductCatalogImpl implements ProductCatalog {
 
 	public void setValidCountries(List<Country> validCountries) {
 		this.validCountries = validCountries;
+		Map<String, Country> newCountriesById = new ConcurrentHashMap<String, Country>();
+		for (Country country : validCountries) {
+			newCountriesById.put(country.getCountryId(), country);
+		}
+		this.countriesById = newCountriesById;
+		synchronized (this) {
+			incrementVersion();
+		}
 	}
 
 	public List<Device> getValidDevices() {
@@ -251,6 +636,14 @@ public class ProductCatalogImpl implements ProductCatalog {
 
 	public void setValidDevices(List<Device> validDevices) {
 		this.validDevices = validDevices;
+		Map<String, Device> newDevicesById = new ConcurrentHashMap<String, Device>();
+		for (Device device : validDevices) {
+			newDevicesById.put(device.getDeviceId(), device);
+		}
+		this.devicesById = newDevicesById;
+		synchronized (this) {
+			incrementVersion();
+		}
 	}
 
 	public Set<Product> getProducts() {
@@ -258,22 +651,91 @@ public class ProductCatalogImpl implements ProductCatalog {
 	}
 
 	public void setProducts(Set<Product> products) {
-		this.products = products;
+		// rebuilding the indexes for the new product set, queries use the old snapshot until it is published
+		Map<String, Product> newProductsById = new ConcurrentHashMap<String, Product>();
+		for (Product product : products) {
+			newProductsById.put(product.getProductId(), product);
+		}
+		List<Product> productList = new ArrayList<Product>(products);
+		Map<String, Integer> newOrdinalsById = getOrdinalsById(productList);
+		CatalogIndex newIndex = new CatalogIndex().withProducts(productList);
+		synchronized (this) {
+			this.products = products;
+			this.productsById = newProductsById;
+			this.ordinalsById = newOrdinalsById;
+			snapshot = newSnapshot(newIndex, new ProductBitmap(), snapshot.getVersion() + 1);
+		}
+	}
+	
+	/**
+	 * @return current version of the catalog, incremented whenever a product, country or device is added
+	 */
+	public long getCatalogVersion() {
+		return snapshot.getVersion();
+	}
+	
+	/**
+	 * @return the current snapshot of the products, in the order they were added to the catalog
+	 */
+	CatalogSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * @return number of queries answered from the query result cache
+	 */
+	public long getQueryCacheHits() {
+		return queryCache.getHits();
+	}
+	
+	/**
+	 * @return number of queries not found in the query result cache
+	 */
+	public long getQueryCacheMisses() {
+		return queryCache.getMisses();
+	}
+	
+	/**
+	 * Sets the bounds of the query result cache, least recently used results are evicted first.
+	 * A maxQueries of 0 disables the cache.
+	 * @param maxQueries max number of query results to hold
+	 * @param maxProducts max total number of products to hold over all results
+	 */
+	public void setQueryCacheSize(int maxQueries, int maxProducts) {
+		queryCache.resize(maxQueries, maxProducts);
+	}
+	
+	/**
+	 * Sets the catalog size from which queries are evaluated in parallel on the fork/join pool.
+	 * Smaller catalogs are queried on the calling thread, to avoid the cost of splitting small queries.
+	 * @param productCount number of products from which queries run in parallel
+	 */
+	public void setParallelQueryThreshold(int productCount) {
+		this.parallelQueryThreshold = productCount;
+	}
+	
+	/**
+	 * Returns the shared instance of a category held by the catalog dictionary, so the categories
+	 * of imported products do not each keep their own copy of the same strings.
+	 * @param category a product category
+	 * @return equal String held by the catalog
+	 */
+	String internCategory(String category) {
+		return snapshot.getIndex().getCategoryIndex().getDictionary().intern(category);
+	}
+	
+	/**
+	 * Returns the shared instance of a language code held by the catalog dictionary.
+	 * @param language a language code
+	 * @return equal String held by the catalog
+	 */
+	String internLanguage(String language) {
+		return snapshot.getIndex().getLanguageIndex().getDictionary().intern(language);
 	}
 	
-	// private utility method
-	private boolean hasText(String text) {
-        return (text != null && !text.isEmpty() && !text.trim().isEmpty());
-    }
-
 	@Override
 	public Product getProductById(String productId) {
-		for (Product product : getProducts()) {
-			if(product.getProductId().equals(productId)){
-				return product;
-			}
-		}
-		return null;
+		return (productId != null) ? productsById.get(productId) : null;
 	}
 
 }
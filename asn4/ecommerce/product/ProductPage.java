@@ -0,0 +1,70 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.List;
+
+/**
+ * The ProductPage class holds one page of the results of a ProductCatalog query, as returned by the
+ * paged queryProducts. Along with the products of the page it gives the number of products matching
+ * the query, so the caller can work out how many pages there are.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public class ProductPage {
+
+	private List<Product> products;
+	private ProductSortOrder sortOrder;
+	private int offset;
+	private int limit;
+	private int totalCount;
+
+	/**
+	 * Constructor for ProductPage
+	 * @param products the products of the page, in sort order
+	 * @param sortOrder order of the products
+	 * @param offset position of the first product of the page in the full result
+	 * @param limit max number of products requested for the page
+	 * @param totalCount number of products matching the query
+	 */
+	public ProductPage(List<Product> products, ProductSortOrder sortOrder, int offset, int limit, int totalCount) {
+		this.products = products;
+		this.sortOrder = sortOrder;
+		this.offset = offset;
+		this.limit = limit;
+		this.totalCount = totalCount;
+	}
+
+	public List<Product> getProducts() {
+		return products;
+	}
+
+	public ProductSortOrder getSortOrder() {
+		return sortOrder;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * @return true if more products match the query after this page
+	 */
+	public boolean hasNextPage() {
+		return (long) offset + products.size() < totalCount;
+	}
+
+	@Override
+	public String toString() {
+		return "ProductPage [offset=" + offset + ", limit=" + limit + ", totalCount=" + totalCount
+				+ ", sortOrder=" + sortOrder + ", products=" + products.size() + "]";
+	}
+
+}
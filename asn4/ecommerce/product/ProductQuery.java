@@ -0,0 +1,206 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The ProductQuery class holds the criteria of a single ProductCatalog query, as passed to queryProducts.
+ * The criteria are normalized so that queries matching the same products are equal, which lets a
+ * ProductQuery be used as the key of the query result cache: null sets are treated as empty sets,
+ * blank strings as empty strings and minimum ratings below 0 as 0. The sets are copied, so later
+ * changes made by the caller do not affect the query.
+ *
+ * @author Frank O'Connor
+ *
+ */
+final class ProductQuery {
+
+	private final Set<String> categorySet;
+	private final String searchText;
+	private final int minimumRating;
+	private final float maxPrice;
+	private final Set<String> languageSet;
+	private final String countryCode;
+	private final String deviceId;
+	private final Set<String> contentTypeSet;
+	// 0 to find the search text as is, otherwise highest edit distance of the words of the search text
+	private final int maxEdits;
+
+	/**
+	 * Constructor for ProductQuery
+	 * @param categorySet query categories to match
+	 * @param searchText query text to find
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 */
+	ProductQuery(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet) {
+		this(categorySet, searchText, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet, 0);
+	}
+
+	/**
+	 * Constructor for a ProductQuery with typo tolerant text search
+	 * @param categorySet query categories to match
+	 * @param searchText query text to find
+	 * @param minimumRating query rating minimum
+	 * @param maxPrice query price maximum
+	 * @param languageSet query languages to match
+	 * @param countryCode query country to match
+	 * @param deviceId query device to match
+	 * @param contentTypeSet query contentType to match
+	 * @param maxEdits 0 to find the search text as is, otherwise highest edit distance of the words of the search text
+	 */
+	ProductQuery(Set<String> categorySet, String searchText, int minimumRating, float maxPrice, Set<String> languageSet,
+			String countryCode, String deviceId, Set<String> contentTypeSet, int maxEdits) {
+		this.categorySet = normalize(categorySet);
+		// note the search text, country code and deviceId are matched untrimmed
+		this.searchText = normalize(searchText);
+		this.minimumRating = Math.max(0, minimumRating);
+		this.maxPrice = maxPrice;
+		this.languageSet = normalize(languageSet);
+		this.countryCode = normalize(countryCode);
+		this.deviceId = normalize(deviceId);
+		this.contentTypeSet = normalize(contentTypeSet);
+		this.maxEdits = Math.max(0, Math.min(FuzzyTermIndex.MAX_EDITS, maxEdits));
+	}
+
+	Set<String> getCategorySet() {
+		return categorySet;
+	}
+
+	String getSearchText() {
+		return searchText;
+	}
+
+	int getMinimumRating() {
+		return minimumRating;
+	}
+
+	float getMaxPrice() {
+		return maxPrice;
+	}
+
+	Set<String> getLanguageSet() {
+		return languageSet;
+	}
+
+	String getCountryCode() {
+		return countryCode;
+	}
+
+	String getDeviceId() {
+		return deviceId;
+	}
+
+	Set<String> getContentTypeSet() {
+		return contentTypeSet;
+	}
+
+	int getMaxEdits() {
+		return maxEdits;
+	}
+
+	/**
+	 * Checks a single product against the criteria, as for products not yet in the catalog indexes.
+	 * @param product the product to check
+	 * @return true if the product matches every criteria
+	 */
+	boolean matches(Product product) {
+		if (!categorySet.isEmpty() && Collections.disjoint(categorySet, product.getCategories())) {
+			return false;
+		}
+		if (!searchText.isEmpty()) {
+			if (maxEdits > 0) {
+				if (!FuzzyTermIndex.matches(product, searchText, maxEdits)) {
+					return false;
+				}
+			} else if (product.getProductName().indexOf(searchText) < 0 && product.getDescription().indexOf(searchText) < 0) {
+				return false;
+			}
+		}
+		if (product.getRating() < minimumRating || !(product.getPrice() <= maxPrice)) {
+			return false;
+		}
+		if (!languageSet.isEmpty() && Collections.disjoint(languageSet, product.getLanguages())) {
+			return false;
+		}
+		if (!countryCode.isEmpty()) {
+			boolean found = false;
+			for (Country country : product.getCountries()) {
+				found = found || country.getCountryId().equals(countryCode);
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		if (!deviceId.isEmpty()) {
+			boolean found = false;
+			for (Device device : product.getDevices()) {
+				found = found || device.getDeviceId().equals(deviceId);
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return contentTypeSet.isEmpty() || contentTypeSet.contains(CatalogIndex.getContentType(product));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ProductQuery)) {
+			return false;
+		}
+		ProductQuery other = (ProductQuery) obj;
+		return minimumRating == other.minimumRating
+				&& maxEdits == other.maxEdits
+				&& Float.floatToIntBits(maxPrice) == Float.floatToIntBits(other.maxPrice)
+				&& searchText.equals(other.searchText)
+				&& countryCode.equals(other.countryCode)
+				&& deviceId.equals(other.deviceId)
+				&& categorySet.equals(other.categorySet)
+				&& languageSet.equals(other.languageSet)
+				&& contentTypeSet.equals(other.contentTypeSet);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = categorySet.hashCode();
+		hash = 31 * hash + searchText.hashCode();
+		hash = 31 * hash + minimumRating;
+		hash = 31 * hash + Float.floatToIntBits(maxPrice);
+		hash = 31 * hash + languageSet.hashCode();
+		hash = 31 * hash + countryCode.hashCode();
+		hash = 31 * hash + deviceId.hashCode();
+		hash = 31 * hash + contentTypeSet.hashCode();
+		hash = 31 * hash + maxEdits;
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "{categories: " + categorySet + ", text: \"" + searchText + "\", minimumRating: " + minimumRating
+				+ ", maxPrice: " + maxPrice + ", languages: " + languageSet + ", country: " + countryCode
+				+ ", device: " + deviceId + ", contentTypes: " + contentTypeSet + ", maxEdits: " + maxEdits + "}";
+	}
+
+	// private utility methods
+	private static Set<String> normalize(Set<String> values) {
+		if (values == null || values.isEmpty()) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(new HashSet<String>(values));
+	}
+
+	private static String normalize(String text) {
+		return (text != null && !text.trim().isEmpty()) ? text : "";
+	}
+
+}
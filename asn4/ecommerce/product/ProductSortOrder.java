@@ -0,0 +1,20 @@
+package cscie97.asn4.ecommerce.product;
+
+/**
+ * The order the products of a paged ProductCatalog query are returned in.
+ * Products with the same rating or price are returned in the order they were added to the catalog,
+ * so consecutive pages of the same query do not overlap.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public enum ProductSortOrder {
+
+	/** highest rated products first */
+	RATING_HIGHEST_FIRST,
+	/** cheapest products first */
+	PRICE_LOWEST_FIRST,
+	/** most expensive products first */
+	PRICE_HIGHEST_FIRST
+
+}
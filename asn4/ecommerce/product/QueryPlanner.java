@@ -0,0 +1,283 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The QueryPlanner class turns a ProductQuery into the list of predicates to evaluate, and decides the
+ * order they are evaluated in from the statistics kept by the CatalogIndex. Each predicate is ranked by
+ * its cost per candidate over the fraction of candidates it removes, so cheap and selective predicates
+ * run first and the expensive checks only see the candidates left by them.
+ * Large catalogs can be queried in parallel, the ordinals are split into chunks which are evaluated
+ * on the fork/join pool and the result bitmaps of the chunks are joined back together. The index predicates
+ * keep the bitmap they read on the first chunk, so only the candidate checks are repeated for each chunk.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class QueryPlanner {
+
+	private final CatalogIndex index;
+
+	/**
+	 * Constructor for QueryPlanner
+	 * @param index the catalog index queries are planned against
+	 */
+	QueryPlanner(CatalogIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Builds the predicates of a query, in the order they should be evaluated.
+	 * Criteria which match every product, such as a blank country code, are left out.
+	 * @param query the query criteria
+	 * @return ordered list of predicates
+	 */
+	List<QueryPredicate> plan(ProductQuery query) {
+		List<QueryPredicate> predicates = new ArrayList<QueryPredicate>();
+
+		String searchText = query.getSearchText();
+		if (hasText(searchText) && query.getMaxEdits() > 0) {
+			predicates.add(new QueryPredicate.FuzzyTextPredicate(index, searchText, query.getMaxEdits()));
+		} else if (hasText(searchText)) {
+			if (searchText.length() >= TextIndex.GRAM_LENGTH) {
+				predicates.add(new QueryPredicate.TextIndexPredicate(index, searchText));
+			}
+			predicates.add(new QueryPredicate.TextMatchPredicate(index, searchText));
+		}
+		if (query.getCategorySet().size() > 0) {
+			predicates.add(new QueryPredicate.AttributePredicate(index, "category", index.getCategoryIndex(), query.getCategorySet()));
+		}
+		// ratings are between 0 and 5, so a minimum of 0 or less matches every product
+		if (query.getMinimumRating() > 0) {
+			predicates.add(new QueryPredicate.RatingPredicate(index, query.getMinimumRating()));
+		}
+		if (!(query.getMaxPrice() >= index.getHighestPrice())) {
+			predicates.add(new QueryPredicate.PricePredicate(index, query.getMaxPrice()));
+		}
+		if (query.getLanguageSet().size() > 0) {
+			predicates.add(new QueryPredicate.AttributePredicate(index, "language", index.getLanguageIndex(), query.getLanguageSet()));
+		}
+		if (hasText(query.getCountryCode())) {
+			predicates.add(new QueryPredicate.AttributePredicate(index, "country", index.getCountryIndex(), singleton(query.getCountryCode())));
+		}
+		if (hasText(query.getDeviceId())) {
+			predicates.add(new QueryPredicate.AttributePredicate(index, "device", index.getDeviceIndex(), singleton(query.getDeviceId())));
+		}
+		if (query.getContentTypeSet().size() > 0) {
+			predicates.add(new QueryPredicate.AttributePredicate(index, "contentType", index.getContentTypeIndex(), query.getContentTypeSet()));
+		}
+
+		final int productCount = index.getProductCount();
+		if (productCount > 0) {
+			// stable sort, so the trigram predicate stays ahead of its text match when ranked equal
+			Collections.sort(predicates, new Comparator<QueryPredicate>() {
+				@Override
+				public int compare(QueryPredicate a, QueryPredicate b) {
+					return Double.compare(rank(a, productCount), rank(b, productCount));
+				}
+			});
+		}
+		return predicates;
+	}
+
+	/**
+	 * Evaluates the predicates in order, each one narrowing down the candidates left by the previous one.
+	 * @param predicates ordered list of predicates
+	 * @return bitmap of the matching products, which must not be modified
+	 */
+	ProductBitmap execute(List<QueryPredicate> predicates) {
+		return execute(predicates, null);
+	}
+
+	/**
+	 * Evaluates the predicates in order, over a subset of the products.
+	 * @param predicates ordered list of predicates
+	 * @param universe products to evaluate the predicates on, or null for every product
+	 * @return bitmap of the matching products, which must not be modified
+	 */
+	ProductBitmap execute(List<QueryPredicate> predicates, ProductBitmap universe) {
+		ProductBitmap candidates = universe;
+		for (QueryPredicate predicate : predicates) {
+			candidates = predicate.evaluate(candidates);
+			if (candidates.isEmpty()) {
+				// no need to evaluate the remaining predicates
+				break;
+			}
+		}
+		return (candidates == null) ? index.getAllProducts() : candidates;
+	}
+
+	/**
+	 * Evaluates the predicates in order as execute does, recording the profile of each one.
+	 * @param predicates ordered list of predicates
+	 * @param profiles list to add the profile of each evaluated predicate to
+	 * @return bitmap of the matching products, which must not be modified
+	 */
+	ProductBitmap executeProfiled(List<QueryPredicate> predicates, List<PredicateProfile> profiles) {
+		ProductBitmap candidates = null;
+		for (QueryPredicate predicate : predicates) {
+			int candidatesIn = (candidates == null) ? index.getProductCount() : candidates.getCardinality();
+			PredicateProfile.AccessPath accessPath = predicate.getAccessPath(candidates);
+			int estimatedMatches = predicate.estimateMatches();
+			long start = System.nanoTime();
+			candidates = predicate.evaluate(candidates);
+			long timeNanos = System.nanoTime() - start;
+			profiles.add(new PredicateProfile(profiles.size() + 1, predicate.getName(), accessPath, estimatedMatches,
+					candidatesIn, candidates.getCardinality(), timeNanos));
+			if (candidates.isEmpty()) {
+				// no need to evaluate the remaining predicates
+				break;
+			}
+		}
+		return (candidates == null) ? index.getAllProducts() : candidates;
+	}
+
+	/**
+	 * Evaluates the plans of a batch of queries, sharing work between them. The first predicate of each plan
+	 * matches the whole catalog, so it is evaluated once for all plans starting with an equal predicate,
+	 * and the scans among them are evaluated together in a single pass over the catalog.
+	 * @param plans ordered list of predicates of each query
+	 * @return bitmap of the matching products of each query, which must not be modified
+	 */
+	List<ProductBitmap> executeBatch(List<List<QueryPredicate>> plans) {
+		Set<QueryPredicate.ScanPredicate> scans = new LinkedHashSet<QueryPredicate.ScanPredicate>();
+		for (List<QueryPredicate> plan : plans) {
+			if (!plan.isEmpty() && plan.get(0) instanceof QueryPredicate.ScanPredicate) {
+				scans.add((QueryPredicate.ScanPredicate) plan.get(0));
+			}
+		}
+		Map<QueryPredicate, ProductBitmap> firstMatches = scanTogether(scans);
+
+		List<ProductBitmap> results = new ArrayList<ProductBitmap>(plans.size());
+		for (List<QueryPredicate> plan : plans) {
+			if (plan.isEmpty()) {
+				results.add(index.getAllProducts());
+				continue;
+			}
+			QueryPredicate first = plan.get(0);
+			ProductBitmap candidates = firstMatches.get(first);
+			if (candidates == null) {
+				candidates = first.evaluate(null);
+				firstMatches.put(first, candidates);
+			}
+			// the remaining predicates only see the candidates of this query, so are evaluated per query
+			results.add(candidates.isEmpty() ? candidates : execute(plan.subList(1, plan.size()), candidates));
+		}
+		return results;
+	}
+
+	/**
+	 * Evaluates the predicates on chunks of the catalog in parallel, using the common fork/join pool.
+	 * @param predicates ordered list of predicates
+	 * @param chunkSize number of ordinals in each chunk
+	 * @return bitmap of the matching products, the same as for a sequential query
+	 */
+	ProductBitmap executeParallel(List<QueryPredicate> predicates, int chunkSize) {
+		int chunkCount = (index.getProductCount() + chunkSize - 1) / chunkSize;
+		if (chunkCount <= 1) {
+			return execute(predicates);
+		}
+		return ForkJoinPool.commonPool().invoke(new ChunkTask(predicates, chunkSize, 0, chunkCount));
+	}
+
+	/**
+	 * Evaluates scan predicates in a single pass over the catalog, each product is read once and checked
+	 * against all of them while it is in cache.
+	 * @param scans the distinct predicates
+	 * @return predicate -> bitmap of the matching products
+	 */
+	private Map<QueryPredicate, ProductBitmap> scanTogether(Set<QueryPredicate.ScanPredicate> scans) {
+		Map<QueryPredicate, ProductBitmap> matches = new HashMap<QueryPredicate, ProductBitmap>();
+		if (scans.isEmpty()) {
+			return matches;
+		}
+		QueryPredicate.ScanPredicate[] predicates = scans.toArray(new QueryPredicate.ScanPredicate[scans.size()]);
+		ProductBitmap[] results = new ProductBitmap[predicates.length];
+		for (int i = 0; i < predicates.length; i++) {
+			results[i] = new ProductBitmap();
+		}
+		int productCount = index.getProductCount();
+		for (int ordinal = 0; ordinal < productCount; ordinal++) {
+			for (int i = 0; i < predicates.length; i++) {
+				if (predicates[i].matches(ordinal)) {
+					results[i].add(ordinal);
+				}
+			}
+		}
+		for (int i = 0; i < predicates.length; i++) {
+			matches.put(predicates[i], results[i]);
+		}
+		return matches;
+	}
+
+	/**
+	 * Ranks a predicate by its cost per candidate over the fraction of candidates it removes.
+	 * @param predicate the predicate to rank
+	 * @param productCount number of products in the catalog
+	 * @return rank, lower ranks are evaluated first
+	 */
+	private double rank(QueryPredicate predicate, int productCount) {
+		double selectivity = Math.min(1.0, (double) predicate.estimateMatches() / productCount);
+		if (selectivity >= 1.0) {
+			return Double.MAX_VALUE;
+		}
+		return predicate.getCostPerCandidate() / (1.0 - selectivity);
+	}
+
+	/**
+	 * Fork/join task evaluating a range of chunks, the range is split in half until a single chunk is left.
+	 * The chunks hold disjoint ordinal ranges, so joining the result bitmaps only appends their containers.
+	 */
+	private class ChunkTask extends RecursiveTask<ProductBitmap> {
+
+		private static final long serialVersionUID = 1L;
+		private final List<QueryPredicate> predicates;
+		private final int chunkSize;
+		private final int fromChunk;
+		private final int toChunk;
+
+		ChunkTask(List<QueryPredicate> predicates, int chunkSize, int fromChunk, int toChunk) {
+			this.predicates = predicates;
+			this.chunkSize = chunkSize;
+			this.fromChunk = fromChunk;
+			this.toChunk = toChunk;
+		}
+
+		@Override
+		protected ProductBitmap compute() {
+			if (toChunk - fromChunk == 1) {
+				int fromOrdinal = fromChunk * chunkSize;
+				int toOrdinal = (int) Math.min((long) fromOrdinal + chunkSize, index.getProductCount());
+				return execute(predicates, ProductBitmap.range(fromOrdinal, toOrdinal));
+			}
+			int middle = (fromChunk + toChunk) >>> 1;
+			ChunkTask left = new ChunkTask(predicates, chunkSize, fromChunk, middle);
+			ChunkTask right = new ChunkTask(predicates, chunkSize, middle, toChunk);
+			left.fork();
+			ProductBitmap rightResult = right.compute();
+			return left.join().or(rightResult);
+		}
+	}
+
+	// private utility methods
+	private Set<String> singleton(String value) {
+		Set<String> values = new HashSet<String>();
+		values.add(value);
+		return values;
+	}
+
+	private boolean hasText(String text) {
+		return (text != null && !text.isEmpty() && !text.trim().isEmpty());
+	}
+
+}
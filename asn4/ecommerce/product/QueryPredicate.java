@@ -0,0 +1,483 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The QueryPredicate class is a single criteria of a ProductCatalog query, as evaluated by the QueryPlanner.
+ * A predicate narrows a bitmap of candidate products down to those matching it, and gives the planner
+ * an estimate of how many products match and how expensive it is to check a candidate, so the planner
+ * can order the predicates of a query.
+ *
+ * @author Frank O'Connor
+ *
+ */
+abstract class QueryPredicate {
+
+	// relative cost of checking one candidate, a bitmap intersection is far cheaper than a column
+	// check, which is far cheaper than a substring search of the name and description
+	static final double INDEX_COST = 0.05;
+	static final double COLUMN_COST = 1.0;
+	static final double TEXT_COST = 25.0;
+
+	protected final CatalogIndex index;
+
+	/**
+	 * Constructor for QueryPredicate
+	 * @param index the catalog index the predicate is evaluated against
+	 */
+	protected QueryPredicate(CatalogIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * @return description of the predicate, as reported by query profiles
+	 */
+	abstract String getName();
+
+	/**
+	 * Predicates of the same index which are equal match the same products, so the matches of one can be
+	 * shared with the other.
+	 */
+	@Override
+	public abstract boolean equals(Object obj);
+
+	@Override
+	public abstract int hashCode();
+
+	/**
+	 * @return estimated number of products in the catalog matching the predicate
+	 */
+	abstract int estimateMatches();
+
+	/**
+	 * @return relative cost of checking one candidate
+	 */
+	abstract double getCostPerCandidate();
+
+	/**
+	 * Narrows the candidates down to the products matching the predicate.
+	 * @param candidates candidate products, or null if every product is a candidate
+	 * @return bitmap of the matching candidates, which must not be modified
+	 */
+	abstract ProductBitmap evaluate(ProductBitmap candidates);
+
+	/**
+	 * @param candidates the candidates the predicate is evaluated on, or null for every product
+	 * @return how the predicate is answered on the candidates, as reported by query profiles
+	 */
+	PredicateProfile.AccessPath getAccessPath(ProductBitmap candidates) {
+		return PredicateProfile.AccessPath.INDEX;
+	}
+
+	/**
+	 * A predicate which can check the products one by one, so matching the whole catalog can share a single
+	 * pass over the catalog with the scans of other queries.
+	 */
+	abstract static class ScanPredicate extends QueryPredicate {
+
+		/**
+		 * Constructor for ScanPredicate
+		 * @param index the catalog index the predicate is evaluated against
+		 */
+		protected ScanPredicate(CatalogIndex index) {
+			super(index);
+		}
+
+		/**
+		 * Checks a single product.
+		 * @param ordinal the product ordinal
+		 * @return true if the product matches the predicate
+		 */
+		abstract boolean matches(int ordinal);
+
+		@Override
+		PredicateProfile.AccessPath getAccessPath(ProductBitmap candidates) {
+			return (candidates == null) ? PredicateProfile.AccessPath.FULL_SCAN : PredicateProfile.AccessPath.CANDIDATE_CHECK;
+		}
+	}
+
+	/**
+	 * Predicate on an attribute index, a product matches if it has any of the query values.
+	 * The values are translated to dictionary ids when the predicate is built, once per query.
+	 */
+	static class AttributePredicate extends QueryPredicate {
+
+		private final String attributeName;
+		private final AttributeIndex attributeIndex;
+		private final Set<String> values;
+		// ids of the query values, values no product has are left out
+		private final int[] valueIds;
+		// union of the value bitmaps, built on the first evaluation and shared by the chunks of the query
+		private volatile ProductBitmap matches;
+
+		AttributePredicate(CatalogIndex index, String attributeName, AttributeIndex attributeIndex, Set<String> values) {
+			super(index);
+			this.attributeName = attributeName;
+			this.attributeIndex = attributeIndex;
+			this.values = values;
+			this.valueIds = attributeIndex.encode(values);
+		}
+
+		@Override
+		String getName() {
+			return attributeName + " in " + new TreeSet<String>(values);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof AttributePredicate)) {
+				return false;
+			}
+			AttributePredicate other = (AttributePredicate) obj;
+			return attributeIndex == other.attributeIndex && values.equals(other.values);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(attributeIndex) + values.hashCode();
+		}
+
+		@Override
+		int estimateMatches() {
+			// the sum of the bitmap sizes is exact for a single value and an upper bound otherwise
+			return Math.min(index.getProductCount(), attributeIndex.countAny(valueIds));
+		}
+
+		@Override
+		double getCostPerCandidate() {
+			return INDEX_COST;
+		}
+
+		@Override
+		ProductBitmap evaluate(ProductBitmap candidates) {
+			if (valueIds.length == 0) {
+				return new ProductBitmap();
+			}
+			ProductBitmap valueMatches = matches;
+			if (valueMatches == null) {
+				valueMatches = attributeIndex.getAny(valueIds);
+				matches = valueMatches;
+			}
+			return (candidates == null) ? valueMatches : candidates.and(valueMatches);
+		}
+	}
+
+	/**
+	 * Predicate on the trigram index, narrows the candidates down to the products containing
+	 * all trigrams of the search text. Must be followed by a TextMatchPredicate.
+	 */
+	static class TextIndexPredicate extends QueryPredicate {
+
+		private final String searchText;
+		// products containing every trigram, intersected on the first evaluation and shared by the chunks of the query
+		private volatile ProductBitmap matches;
+
+		TextIndexPredicate(CatalogIndex index, String searchText) {
+			super(index);
+			this.searchText = searchText;
+		}
+
+		@Override
+		String getName() {
+			return "trigrams of \"" + searchText + "\"";
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof TextIndexPredicate) && searchText.equals(((TextIndexPredicate) obj).searchText);
+		}
+
+		@Override
+		public int hashCode() {
+			return searchText.hashCode();
+		}
+
+		@Override
+		int estimateMatches() {
+			return index.getTextIndex().estimateCandidates(searchText);
+		}
+
+		@Override
+		double getCostPerCandidate() {
+			return INDEX_COST;
+		}
+
+		@Override
+		ProductBitmap evaluate(ProductBitmap candidates) {
+			ProductBitmap trigramMatches = matches;
+			if (trigramMatches == null) {
+				trigramMatches = index.getTextIndex().getCandidates(searchText);
+				matches = trigramMatches;
+			}
+			return (candidates == null) ? trigramMatches : candidates.and(trigramMatches);
+		}
+	}
+
+	/**
+	 * Predicate checking the product name and description contain the search text.
+	 */
+	static class TextMatchPredicate extends ScanPredicate {
+
+		private final String searchText;
+
+		TextMatchPredicate(CatalogIndex index, String searchText) {
+			super(index);
+			this.searchText = searchText;
+		}
+
+		@Override
+		String getName() {
+			return "text contains \"" + searchText + "\"";
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof TextMatchPredicate) && searchText.equals(((TextMatchPredicate) obj).searchText);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * searchText.hashCode() + 1;
+		}
+
+		@Override
+		int estimateMatches() {
+			int candidates = index.getTextIndex().estimateCandidates(searchText);
+			return (candidates >= 0) ? candidates : index.getProductCount();
+		}
+
+		@Override
+		double getCostPerCandidate() {
+			return TEXT_COST;
+		}
+
+		@Override
+		ProductBitmap evaluate(ProductBitmap candidates) {
+			ProductBitmap matches = new ProductBitmap();
+			PrimitiveIterator.OfInt candidateIter = ((candidates == null) ? index.getAllProducts() : candidates).iterator();
+			while (candidateIter.hasNext()) {
+				int ordinal = candidateIter.nextInt();
+				if (matches(ordinal)) {
+					matches.add(ordinal);
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		boolean matches(int ordinal) {
+			Product product = index.getProduct(ordinal);
+			return (product.getProductName().indexOf(searchText) >= 0) || (product.getDescription().indexOf(searchText) >= 0);
+		}
+	}
+
+	/**
+	 * Predicate on the term index, the products with a word of the name or author close to each word
+	 * of the search text.
+	 */
+	static class FuzzyTextPredicate extends QueryPredicate {
+
+		private final String searchText;
+		private final int maxEdits;
+		// matches of the term index, found on the first evaluation and shared by the chunks of the query
+		private volatile ProductBitmap matches;
+
+		FuzzyTextPredicate(CatalogIndex index, String searchText, int maxEdits) {
+			super(index);
+			this.searchText = searchText;
+			this.maxEdits = maxEdits;
+		}
+
+		@Override
+		String getName() {
+			return "terms within " + maxEdits + " edits of \"" + searchText + "\"";
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FuzzyTextPredicate)) {
+				return false;
+			}
+			FuzzyTextPredicate other = (FuzzyTextPredicate) obj;
+			return maxEdits == other.maxEdits && searchText.equals(other.searchText);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * searchText.hashCode() + maxEdits;
+		}
+
+		@Override
+		int estimateMatches() {
+			return index.getFuzzyTermIndex().estimateMatches(searchText, maxEdits);
+		}
+
+		@Override
+		double getCostPerCandidate() {
+			return INDEX_COST;
+		}
+
+		@Override
+		ProductBitmap evaluate(ProductBitmap candidates) {
+			ProductBitmap termMatches = matches;
+			if (termMatches == null) {
+				termMatches = index.getFuzzyTermIndex().getMatches(searchText, maxEdits);
+				matches = termMatches;
+			}
+			return (candidates == null) ? termMatches : candidates.and(termMatches);
+		}
+	}
+
+	/**
+	 * Predicate on the rating index, the union of the bitmaps of the ratings from the minimum up.
+	 */
+	static class RatingPredicate extends QueryPredicate {
+
+		private final int minimumRating;
+		// union of the rating bitmaps, built on the first evaluation and shared by the chunks of the query
+		private volatile ProductBitmap matches;
+
+		RatingPredicate(CatalogIndex index, int minimumRating) {
+			super(index);
+			this.minimumRating = minimumRating;
+		}
+
+		@Override
+		String getName() {
+			return "rating >= " + minimumRating;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof RatingPredicate) && minimumRating == ((RatingPredicate) obj).minimumRating;
+		}
+
+		@Override
+		public int hashCode() {
+			return minimumRating;
+		}
+
+		@Override
+		int estimateMatches() {
+			return index.countRatingAtLeast(minimumRating);
+		}
+
+		@Override
+		double getCostPerCandidate() {
+			return INDEX_COST;
+		}
+
+		@Override
+		ProductBitmap evaluate(ProductBitmap candidates) {
+			ProductBitmap ratingMatches = matches;
+			if (ratingMatches == null) {
+				ratingMatches = index.getRatingAtLeast(minimumRating);
+				matches = ratingMatches;
+			}
+			return (candidates == null) ? ratingMatches : candidates.and(ratingMatches);
+		}
+	}
+
+	/**
+	 * Predicate on the price column and the sorted price index. Matching the whole catalog, the matches
+	 * are the slice of the sorted index up to the price when that slice is small, otherwise the column
+	 * is scanned; narrowing down candidates, their prices are checked in the column.
+	 */
+	static class PricePredicate extends ScanPredicate {
+
+		// largest fraction of the catalog read from the sorted index rather than the column
+		private static final int SLICE_FRACTION = 4;
+
+		private final float maxPrice;
+
+		PricePredicate(CatalogIndex index, float maxPrice) {
+			super(index);
+			this.maxPrice = maxPrice;
+		}
+
+		@Override
+		String getName() {
+			return "price <= " + maxPrice;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof PricePredicate) && Float.floatToIntBits(maxPrice) == Float.floatToIntBits(((PricePredicate) obj).maxPrice);
+		}
+
+		@Override
+		public int hashCode() {
+			return Float.floatToIntBits(maxPrice);
+		}
+
+		@Override
+		int estimateMatches() {
+			// exact, from a binary search of the sorted index
+			SortedPriceIndex priceIndex = index.getPriceIndex();
+			return priceIndex.countPriceAtMost(priceIndex.getSortedOrdinals(), index.getProductCount(), maxPrice);
+		}
+
+		@Override
+		double getCostPerCandidate() {
+			return COLUMN_COST;
+		}
+
+		@Override
+		PredicateProfile.AccessPath getAccessPath(ProductBitmap candidates) {
+			// the prices of the candidates are checked in the column, whatever the size of the slice
+			if (candidates == null && !isColumnScan(estimateMatches())) {
+				return PredicateProfile.AccessPath.INDEX;
+			}
+			return super.getAccessPath(candidates);
+		}
+
+		@Override
+		ProductBitmap evaluate(ProductBitmap candidates) {
+			ProductBitmap matches = new ProductBitmap();
+			float[] prices = index.getPriceColumn();
+			if (candidates == null) {
+				int productCount = index.getProductCount();
+				SortedPriceIndex priceIndex = index.getPriceIndex();
+				int[] sortedOrdinals = priceIndex.getSortedOrdinals();
+				int sliceEnd = priceIndex.countPriceAtMost(sortedOrdinals, productCount, maxPrice);
+				if (!isColumnScan(sliceEnd)) {
+					// the slice is in price order, sorting it lets the bitmap be built in ordinal order
+					int[] slice = Arrays.copyOf(sortedOrdinals, sliceEnd);
+					Arrays.sort(slice);
+					for (int ordinal : slice) {
+						matches.add(ordinal);
+					}
+					return matches;
+				}
+				for (int ordinal = 0; ordinal < productCount; ordinal++) {
+					if (prices[ordinal] <= maxPrice) {
+						matches.add(ordinal);
+					}
+				}
+			} else {
+				PrimitiveIterator.OfInt candidateIter = candidates.iterator();
+				while (candidateIter.hasNext()) {
+					int ordinal = candidateIter.nextInt();
+					if (prices[ordinal] <= maxPrice) {
+						matches.add(ordinal);
+					}
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		boolean matches(int ordinal) {
+			return index.getPriceColumn()[ordinal] <= maxPrice;
+		}
+
+		// the column is scanned unless the slice of the sorted index is small
+		private boolean isColumnScan(int sliceEnd) {
+			return sliceEnd > index.getProductCount() / SLICE_FRACTION;
+		}
+	}
+
+}
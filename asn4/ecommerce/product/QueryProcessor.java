@@ -2,12 +2,22 @@ package cscie97.asn4.ecommerce.product;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cscie97.asn4.ecommerce.util.CsvTokenizer;
 
 /**
  * The QueryProcessor class is responsible for reading queries from csv input files with the expected format.
@@ -18,11 +28,24 @@ import java.util.Set;
  */
 public class QueryProcessor {
 	
+	// maximum number of queries processed at the same time by processQueriesConcurrent
+	private int parallelism;
+	
 	/** 
 	 * Constructor class for QueryProcessor.
 	 */
 	public QueryProcessor(){
 		// constructor
+		this.parallelism = Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Sets the maximum number of queries processed at the same time by processQueriesConcurrent.
+	 * Defaults to the number of available processors.
+	 * @param parallelism maximum number of concurrent queries, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
 	}
 	
 	/**
@@ -34,31 +57,142 @@ public class QueryProcessor {
 	 */
 	public HashMap<String, List<Product>> processQueries(String filename) throws QueryProcessorException {
 		HashMap<String, List<Product>> queriesResults = new HashMap<String, List<Product>>();
-    	Scanner lineScanner = null;
+		// calling singleton instance of productCatalog
+		ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+		for (Map.Entry<String, ProductQuery> query : parseQueries(filename).entrySet()) {
+			// querying Products, results list for a single query
+			queriesResults.put(query.getKey(), queryProducts(pCatalog, query.getValue()));
+		}
+		return queriesResults;
+	}
+	
+	/**
+	 * Method for processing the queries of a file against the ProductCatalog as a single batch.
+	 * The whole file is parsed before any query is processed, then the queries are evaluated together
+	 * against the same version of the catalog, sharing the work common to several queries.
+	 * The results are the same as those of processQueries.
+	 * @param filename the name of the input file.
+	 * @return HashMap<String, List<Product>> Map of results with query as key, and list of Products as values.
+	 * @throws QueryProcessorException if there is an error accessing or processing the query File.
+	 */
+	public HashMap<String, List<Product>> processQueriesBatch(String filename) throws QueryProcessorException {
+		LinkedHashMap<String, ProductQuery> queries = parseQueries(filename);
+		HashMap<String, List<Product>> queriesResults = new HashMap<String, List<Product>>();
+		ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+		if (pCatalog instanceof ProductCatalogImpl) {
+			List<List<Product>> batchResults = ((ProductCatalogImpl) pCatalog).queryProductsBatch(new ArrayList<ProductQuery>(queries.values()));
+			int queryIndex = 0;
+			for (String line : queries.keySet()) {
+				queriesResults.put(line, batchResults.get(queryIndex++));
+			}
+		} else {
+			for (Map.Entry<String, ProductQuery> query : queries.entrySet()) {
+				queriesResults.put(query.getKey(), queryProducts(pCatalog, query.getValue()));
+			}
+		}
+		return queriesResults;
+	}
+	
+	/**
+	 * Method for processing the queries of a file against the ProductCatalog concurrently.
+	 * The whole file is parsed before any query is processed, then the queries are run on a pool of at
+	 * most parallelism threads, and their results collected back in the order of the file.
+	 * The results are the same as those of processQueries.
+	 * @param filename the name of the input file.
+	 * @return LinkedHashMap<String, List<Product>> Map of results in file order, with query as key, and list of Products as values.
+	 * @throws QueryProcessorException if there is an error accessing or processing the query File.
+	 */
+	public LinkedHashMap<String, List<Product>> processQueriesConcurrent(String filename) throws QueryProcessorException {
+		LinkedHashMap<String, ProductQuery> queries = parseQueries(filename);
+		LinkedHashMap<String, List<Product>> queriesResults = new LinkedHashMap<String, List<Product>>();
+		if (queries.isEmpty()) {
+			return queriesResults;
+		}
+		final ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, queries.size()));
+		String line = "";
+		try {
+			// submitting every query, the pool queues those waiting for a thread
+			LinkedHashMap<String, Future<List<Product>>> pendingResults = new LinkedHashMap<String, Future<List<Product>>>();
+			for (Map.Entry<String, ProductQuery> query : queries.entrySet()) {
+				final ProductQuery productQuery = query.getValue();
+				pendingResults.put(query.getKey(), executor.submit(new Callable<List<Product>>() {
+					public List<Product> call() {
+						return queryProducts(pCatalog, productQuery);
+					}
+				}));
+			}
+			// collecting the results in file order
+			for (Map.Entry<String, Future<List<Product>>> pendingResult : pendingResults.entrySet()) {
+				line = pendingResult.getKey();
+				queriesResults.put(line, pendingResult.getValue().get());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new QueryProcessorException("Interrupted while processing queries", line, 0, filename, ie);
+		} catch (ExecutionException ee) {
+			// catching the Exception of a failed query and throwing our custom Exception, which includes useful info
+			throw new QueryProcessorException(ee.getCause().getMessage(), line, 0, filename, ee.getCause());
+		} finally {
+			// stopping the pool threads, and any query not yet run after a failure
+			executor.shutdownNow();
+		}
+		return queriesResults;
+	}
+	
+	/**
+	 * Method for profiling the queries of a file against the ProductCatalog, printing the profile of each
+	 * query line as it is processed. The results are the same as those of processQueries.
+	 * @param filename the name of the input file.
+	 * @param out stream to print the profiles to, or null not to print them.
+	 * @return LinkedHashMap<String, QueryProfile> Map of profiles in file order, with query as key.
+	 * @throws QueryProcessorException if there is an error accessing or processing the query File.
+	 */
+	public LinkedHashMap<String, QueryProfile> profileQueries(String filename, PrintStream out) throws QueryProcessorException {
+		LinkedHashMap<String, QueryProfile> queriesProfiles = new LinkedHashMap<String, QueryProfile>();
+		ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
+		for (Map.Entry<String, ProductQuery> query : parseQueries(filename).entrySet()) {
+			ProductQuery productQuery = query.getValue();
+			QueryProfile profile = pCatalog.queryProductsWithProfile(productQuery.getCategorySet(), productQuery.getSearchText(),
+					productQuery.getMinimumRating(), productQuery.getMaxPrice(), productQuery.getLanguageSet(),
+					productQuery.getCountryCode(), productQuery.getDeviceId(), productQuery.getContentTypeSet());
+			queriesProfiles.put(query.getKey(), profile);
+			if (out != null) {
+				out.println(query.getKey());
+				out.println(profile);
+			}
+		}
+		return queriesProfiles;
+	}
+	
+	/**
+	 * Private method for parsing the queries of an input file.
+	 * @param filename the name of the input file.
+	 * @return LinkedHashMap<String, ProductQuery> Map of queries in file order, with query line as key.
+	 * @throws QueryProcessorException if there is an error accessing or parsing the query File.
+	 */
+	private LinkedHashMap<String, ProductQuery> parseQueries(String filename) throws QueryProcessorException {
+		LinkedHashMap<String, ProductQuery> queries = new LinkedHashMap<String, ProductQuery>();
+    	CsvTokenizer lineTokenizer = null;
     	String line = "";
     	int lineNum = 0;
     	
 		try {
-			// reading file line by line using Scanner
-			lineScanner = new Scanner(new FileInputStream(filename));
+			// reading file line by line, each line is tokenized as it is read
+			lineTokenizer = new CsvTokenizer(new FileInputStream(filename));
 				      
-	    	while(lineScanner.hasNextLine()){
-	    		line = lineScanner.nextLine().trim();
+	    	while(lineTokenizer.nextLine()){
+	    		line = lineTokenizer.getLine();
 	    		// keeping track of the number of lines we have read
 	    		lineNum += 1;
-	    		if(line.equals("") || line.charAt(0)=='#'){
+	    		if(lineTokenizer.isBlankOrComment()){
 	    			// we are ignoring comments and blank lines and do not count these as parsing errors 
 	    		} else {
-	    			// converting all input to lower case for case insensitivity
-	    			line = line.toLowerCase();
-	    			// splitting the lines on a comma delimiter, but ignoring escaped commas (\,)
-	    			String[] splitString = line.split("(?<!\\\\),");
+	    			// the tokenizer converts the line to lower case for case insensitivity and splits it
+	    			// on a comma delimiter, but ignoring escaped commas (\,)
 	    			
-	    			List <Product> queryResult = new ArrayList<Product>();
-	    			// process a single query
-	    			queryResult = processQuery(splitString);
-	    			// Results list for a single query
-	    			queriesResults.put(line, queryResult);
+	    			// parse a single query
+	    			queries.put(line, parseQuery(lineTokenizer));
 	    		}
 	    		
 	    	}
@@ -76,43 +210,46 @@ public class QueryProcessor {
 			throw new QueryProcessorException(e.getMessage(), line, lineNum, filename, e);
 		} finally {
 			// ensuring the closure the underlying stream
-			if(lineScanner != null){
-				lineScanner.close();
+			if(lineTokenizer != null){
+				try {
+					lineTokenizer.close();
+				} catch (IOException ioe) {
+					// the input was fully read or has already failed, nothing is lost
+				}
 			}
 		}
-		return queriesResults;
+		return queries;
 	}
 	
 	/**
-	 * Private method to process valid query line and against the ProductCatalog 
-	 * and return the matching results.
-	 * @param splitString the parsed line from the csv file.
-	 * @return list of results that match the query.
-	 * @throws QueryProcessorException if a processing problem is encountered.
+	 * Private method to parse a valid query line into the criteria of a ProductCatalog query.
+	 * @param fields the fields of the parsed line from the csv file.
+	 * @return the query criteria.
+	 * @throws QueryProcessorException if a parsing problem is encountered.
 	 */
-	private List<Product> processQuery(String[] splitString) throws QueryProcessorException {
-		List <Product> queryResult = new ArrayList<Product>();
+	private ProductQuery parseQuery(CsvTokenizer fields) throws QueryProcessorException {
+		ProductQuery query = null;
 		// expecting at 8 variables, but last may be blank, so checking for 7 here
-		if(splitString.length>6){
+		if(fields.getFieldCount()>6){
 			
 			// splitting categories on pipe delimiter
 			Set<String> categorySet = new HashSet<String>();
-			if(hasText(splitString[0])){
-				String[] splitCategories = splitString[0].trim().split("\\|");
+			if(hasText(fields.getField(0))){
+				String[] splitCategories = fields.getSubFields(0);
 				for (String category : splitCategories) {
 					categorySet.add(category);
 				}
 			}
 			
 			// removing escape characters from textSearch
-			String textSearch = splitString[1].trim().replaceAll("\\\\", "");
+			String textSearch = fields.getUnescaped(1);
 			
 			// parsing rating from input
 			// defaults to 0
 			int minimumRating = 0;
-			if(hasText(splitString[2])){
+			if(hasText(fields.getField(2))){
 				try{
-    				int rating = Integer.parseInt(splitString[2].trim());
+    				int rating = Integer.parseInt(fields.getTrimmed(2));
     				if(rating>=0 && rating<=5){
     					minimumRating=rating;
     				}else{
@@ -126,9 +263,9 @@ public class QueryProcessor {
 			// parsing price from input
 			// defaults to 0/free
 			float maxPrice = 0;
-			if(hasText(splitString[3])){
+			if(hasText(fields.getField(3))){
 				try{
-    				float price = Float.parseFloat(splitString[3].trim());
+    				float price = Float.parseFloat(fields.getTrimmed(3));
     				if(price>=0){
     					maxPrice=price;
     				}else{
@@ -141,32 +278,29 @@ public class QueryProcessor {
 			
 			// splitting export language on pipe delimiter
 			Set<String> languageSet  = new HashSet<String>();
-			if(hasText(splitString[4])){
-				String[] splitLanguages = splitString[4].trim().split("\\|");
+			if(hasText(fields.getField(4))){
+				String[] splitLanguages = fields.getSubFields(4);
 				for (String language : splitLanguages) {
 					languageSet.add(language);
 				}
 			}
 
 			// parsing query params
-			String countryCode = splitString[5].trim();
-			String deviceId = splitString[6].trim();
+			String countryCode = fields.getTrimmed(5);
+			String deviceId = fields.getTrimmed(6);
 			
 			// splitting content types on pipe delimiter
 			String[] splitContentTypes = {};
 			Set<String> contentTypeSet = new HashSet<String>();	
 			// validating 7th parm exists here
-			if(splitString.length>7 && hasText(splitString[7])){
-				splitContentTypes = splitString[7].trim().split("\\|");
+			if(fields.getFieldCount()>7 && hasText(fields.getField(7))){
+				splitContentTypes = fields.getSubFields(7);
 				for (String contentType : splitContentTypes) {
 					contentTypeSet.add(contentType);
 				}
 			}
 			
-			// calling singleton instance of productCatalog
-			ProductCatalog pCatalog = ProductCatalogImpl.getInstance();
-			// querying Products
-			queryResult = pCatalog.queryProducts(categorySet, textSearch, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet);
+			query = new ProductQuery(categorySet, textSearch, minimumRating, maxPrice, languageSet, countryCode, deviceId, contentTypeSet);
 		}else {
 			// more than 3 split strings, indicates an invalid input line.
 			// throwing ImportException when we encounter an invalid line. Invalid line
@@ -174,13 +308,32 @@ public class QueryProcessor {
 			throw new QueryProcessorException("Error in parsing input line", "", 0, "", new Exception());
 		}
 		
-		// returning query results
-		return queryResult;
+		// returning query criteria
+		return query;
+	}
+	
+	/**
+	 * Private method to query the ProductCatalog with parsed query criteria.
+	 * @param pCatalog the ProductCatalog to query.
+	 * @param query the query criteria.
+	 * @return list of results that match the query.
+	 */
+	private List<Product> queryProducts(ProductCatalog pCatalog, ProductQuery query) {
+		return pCatalog.queryProducts(query.getCategorySet(), query.getSearchText(), query.getMinimumRating(), query.getMaxPrice(),
+				query.getLanguageSet(), query.getCountryCode(), query.getDeviceId(), query.getContentTypeSet());
 	}
 	
 	// private utility method
-	private boolean hasText(String text) {
-        return (text != null && !text.isEmpty() && !text.trim().isEmpty());
+	private boolean hasText(CharSequence text) {
+		if (text != null) {
+			// as !text.trim().isEmpty(), without copying the field
+			for (int i = 0; i < text.length(); i++) {
+				if (text.charAt(i) > ' ') {
+					return true;
+				}
+			}
+		}
+		return false;
     }
 	
 }
@@ -0,0 +1,109 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.List;
+
+/**
+ * The QueryProfile class holds the results of a profiled ProductCatalog query together with how they were
+ * found: whether they came from the query cache, and otherwise the profile of each criteria in the order
+ * the planner evaluated them, followed by the check of the products added since the indexes were last built.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public class QueryProfile {
+
+	private String query;
+	private List<Product> products;
+	private long catalogVersion;
+	private boolean cacheHit;
+	private List<PredicateProfile> predicates;
+	private int unindexedProducts;
+	private int unindexedMatches;
+	private long unindexedTimeNanos;
+	private long totalTimeNanos;
+
+	/**
+	 * Constructor for QueryProfile
+	 * @param query description of the query criteria
+	 * @param products the matching products
+	 * @param catalogVersion version of the catalog queried
+	 * @param cacheHit true if the results were found in the query cache, in which case no criteria was evaluated
+	 * @param predicates profile of each evaluated criteria, in evaluation order
+	 * @param unindexedProducts number of products not yet in the indexes, checked one by one
+	 * @param unindexedMatches number of those products matching the query
+	 * @param unindexedTimeNanos time spent checking them, in nanoseconds
+	 * @param totalTimeNanos time spent on the whole query, in nanoseconds
+	 */
+	public QueryProfile(String query, List<Product> products, long catalogVersion, boolean cacheHit, List<PredicateProfile> predicates,
+			int unindexedProducts, int unindexedMatches, long unindexedTimeNanos, long totalTimeNanos) {
+		this.query = query;
+		this.products = products;
+		this.catalogVersion = catalogVersion;
+		this.cacheHit = cacheHit;
+		this.predicates = predicates;
+		this.unindexedProducts = unindexedProducts;
+		this.unindexedMatches = unindexedMatches;
+		this.unindexedTimeNanos = unindexedTimeNanos;
+		this.totalTimeNanos = totalTimeNanos;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public List<Product> getProducts() {
+		return products;
+	}
+
+	public long getCatalogVersion() {
+		return catalogVersion;
+	}
+
+	public boolean isCacheHit() {
+		return cacheHit;
+	}
+
+	public List<PredicateProfile> getPredicates() {
+		return predicates;
+	}
+
+	public int getUnindexedProducts() {
+		return unindexedProducts;
+	}
+
+	public int getUnindexedMatches() {
+		return unindexedMatches;
+	}
+
+	public long getUnindexedTimeNanos() {
+		return unindexedTimeNanos;
+	}
+
+	public long getTotalTimeNanos() {
+		return totalTimeNanos;
+	}
+
+	/**
+	 * @return multi line description of the profile, one line per criteria
+	 */
+	@Override
+	public String toString() {
+		StringBuilder profile = new StringBuilder();
+		profile.append("query ").append(query).append(" on catalog version ").append(catalogVersion).append(": ")
+				.append(products.size()).append(" products in ").append(totalTimeNanos / 1000).append("us");
+		if (cacheHit) {
+			profile.append(", from the query cache");
+		} else {
+			if (predicates.isEmpty()) {
+				profile.append("\n  no criteria, every product matches");
+			}
+			for (PredicateProfile predicate : predicates) {
+				profile.append("\n  ").append(predicate);
+			}
+			profile.append("\n  unindexed products checked=").append(unindexedProducts).append(" out=").append(unindexedMatches)
+					.append(" time=").append(unindexedTimeNanos / 1000).append("us");
+		}
+		return profile.toString();
+	}
+
+}
@@ -0,0 +1,205 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The QueryResultCache class is a bounded LRU cache of ProductCatalog query results keyed by the
+ * normalized query. Each result is stored with the catalog version it was computed at, and is only
+ * returned while the catalog is still at that version, so a result is never served after a product,
+ * country or device has been added. The cache is bounded both by number of queries and by the total
+ * number of products held in the cached results, the least recently used results are evicted first.
+ * Lookups and insertions never lock, so concurrent queries do not wait on each other. Results are held
+ * as unmodifiable lists and returned as is, and the recency of a result is a tick of a shared clock, so
+ * the eviction order is approximate when results are read at the same time.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class QueryResultCache {
+
+	// fraction of the bounds evictions go down to, so a full cache is not swept on every insertion
+	private static final double EVICT_TO = 0.9;
+
+	private volatile int maxQueries;
+	private volatile int maxProducts;
+	// query -> cached result
+	private final ConcurrentHashMap<ProductQuery, CachedResult> results;
+	// total number of products held in the cached results
+	private final AtomicInteger cachedProducts;
+	// ticks on every lookup and insertion, the tick of the last access of a result gives its recency
+	private final AtomicLong clock;
+	// a single thread evicts at a time, others insert past the bounds meanwhile
+	private final ReentrantLock evictLock;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+
+	/**
+	 * Constructor for QueryResultCache
+	 * @param maxQueries max number of query results to hold
+	 * @param maxProducts max total number of products to hold over all results
+	 */
+	QueryResultCache(int maxQueries, int maxProducts) {
+		this.maxQueries = maxQueries;
+		this.maxProducts = maxProducts;
+		this.results = new ConcurrentHashMap<ProductQuery, CachedResult>();
+		this.cachedProducts = new AtomicInteger();
+		this.clock = new AtomicLong();
+		this.evictLock = new ReentrantLock();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	/**
+	 * Returns the cached result of a query if it was computed at the current catalog version.
+	 * @param query the normalized query
+	 * @param catalogVersion current version of the catalog
+	 * @return the cached result, an unmodifiable list, or null on a miss
+	 */
+	List<Product> get(ProductQuery query, long catalogVersion) {
+		CachedResult cached = results.get(query);
+		if (cached != null && cached.catalogVersion == catalogVersion) {
+			hits.incrementAndGet();
+			cached.lastAccess = clock.incrementAndGet();
+			return cached.products;
+		}
+		if (cached != null) {
+			// result is stale
+			remove(query, cached);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches the result of a query.
+	 * @param query the normalized query
+	 * @param catalogVersion version of the catalog the result was computed at
+	 * @param products the query result, an unmodifiable list no longer modified by the caller
+	 */
+	void put(ProductQuery query, long catalogVersion, List<Product> products) {
+		if (products.size() > maxProducts || maxQueries <= 0) {
+			return;
+		}
+		CachedResult cached = new CachedResult(catalogVersion, products, clock.incrementAndGet());
+		cachedProducts.addAndGet(products.size());
+		CachedResult replaced = results.put(query, cached);
+		if (replaced != null) {
+			cachedProducts.addAndGet(-replaced.products.size());
+		}
+		if (results.size() > maxQueries || cachedProducts.get() > maxProducts) {
+			evict();
+		}
+	}
+
+	/**
+	 * Changes the bounds of the cache, evicting results if needed.
+	 * @param maxQueries max number of query results to hold
+	 * @param maxProducts max total number of products to hold over all results
+	 */
+	void resize(int maxQueries, int maxProducts) {
+		this.maxQueries = maxQueries;
+		this.maxProducts = maxProducts;
+		evictLock.lock();
+		try {
+			evictTo(maxQueries, maxProducts);
+		} finally {
+			evictLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all cached results, the hit and miss counters are kept.
+	 */
+	void clear() {
+		for (Map.Entry<ProductQuery, CachedResult> entry : results.entrySet()) {
+			remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	int size() {
+		return results.size();
+	}
+
+	// private utility methods
+	private void remove(ProductQuery query, CachedResult cached) {
+		// only the thread removing the entry accounts for it
+		if (results.remove(query, cached)) {
+			cachedProducts.addAndGet(-cached.products.size());
+		}
+	}
+
+	private void evict() {
+		// the thread already evicting brings the cache back within its bounds
+		if (!evictLock.tryLock()) {
+			return;
+		}
+		try {
+			evictTo((int) (maxQueries * EVICT_TO), (int) (maxProducts * EVICT_TO));
+		} finally {
+			evictLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the least recently used results until the cache is within the bounds.
+	 * Called while holding the evict lock.
+	 */
+	private void evictTo(int queryBound, int productBound) {
+		if (results.size() <= queryBound && cachedProducts.get() <= productBound) {
+			return;
+		}
+		// the ticks are read once, as lookups keep moving them while the entries are sorted
+		final List<Map.Entry<ProductQuery, CachedResult>> entries = new ArrayList<Map.Entry<ProductQuery, CachedResult>>(results.entrySet());
+		final long[] ticks = new long[entries.size()];
+		Integer[] order = new Integer[entries.size()];
+		for (int i = 0; i < order.length; i++) {
+			ticks[i] = entries.get(i).getValue().lastAccess;
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(ticks[a], ticks[b]);
+			}
+		});
+		for (int i : order) {
+			if (results.size() <= queryBound && cachedProducts.get() <= productBound) {
+				break;
+			}
+			remove(entries.get(i).getKey(), entries.get(i).getValue());
+		}
+	}
+
+	/**
+	 * A query result with the catalog version it was computed at.
+	 */
+	private static class CachedResult {
+		private final long catalogVersion;
+		private final List<Product> products;
+		// tick of the clock at the last lookup of the result, only read to order evictions
+		private volatile long lastAccess;
+
+		CachedResult(long catalogVersion, List<Product> products, long lastAccess) {
+			this.catalogVersion = catalogVersion;
+			this.products = products;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The QueryResultSpliterator class evaluates a planned query lazily, as the consumer of the stream pulls
+ * the products. The ordinals are walked one chunk at a time, the predicates are only evaluated on a chunk
+ * once the products of the previous chunk have been consumed, so at most one chunk of matches is held
+ * and the first products are returned before the rest of the catalog is scanned.
+ * The remaining chunks can be split off for a parallel stream, the products stay in ordinal order.
+ * Products in the tail of the snapshot, not yet indexed, are checked one by one in their own chunks.
+ * The index predicates keep the bitmap they read on the first chunk, so the index is read once per query.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class QueryResultSpliterator implements Spliterator<Product> {
+
+	private final CatalogSnapshot snapshot;
+	private final ProductQuery query;
+	private final List<QueryPredicate> predicates;
+	private final int chunkSize;
+	// next ordinal to evaluate and the ordinal after the last one covered by this spliterator
+	private int nextOrdinal;
+	private final int endOrdinal;
+	// matches of the current chunk still to be returned
+	private PrimitiveIterator.OfInt chunkMatches;
+	private int chunkRemaining;
+
+	/**
+	 * Constructor for QueryResultSpliterator
+	 * @param snapshot the catalog snapshot to query
+	 * @param query the query criteria, checked against the products of the tail
+	 * @param predicates ordered list of predicates, planned against the index of the snapshot
+	 * @param chunkSize number of ordinals evaluated at a time, a multiple of the bitmap container size
+	 * @param fromOrdinal first ordinal to evaluate
+	 * @param toOrdinal ordinal after the last to evaluate
+	 */
+	QueryResultSpliterator(CatalogSnapshot snapshot, ProductQuery query, List<QueryPredicate> predicates, int chunkSize,
+			int fromOrdinal, int toOrdinal) {
+		this.snapshot = snapshot;
+		this.query = query;
+		this.predicates = predicates;
+		this.chunkSize = chunkSize;
+		this.nextOrdinal = fromOrdinal;
+		this.endOrdinal = toOrdinal;
+		this.chunkMatches = null;
+		this.chunkRemaining = 0;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Product> action) {
+		while (chunkRemaining == 0) {
+			if (nextOrdinal >= endOrdinal) {
+				return false;
+			}
+			int chunkEnd = (int) Math.min((long) nextOrdinal + chunkSize, endOrdinal);
+			int indexedCount = snapshot.getIndexedCount();
+			ProductBitmap matches;
+			if (nextOrdinal < indexedCount) {
+				chunkEnd = Math.min(chunkEnd, indexedCount);
+				matches = snapshot.getPlanner().execute(predicates, ProductBitmap.range(nextOrdinal, chunkEnd));
+			} else {
+				matches = snapshot.matchTail(query, nextOrdinal, chunkEnd);
+			}
+			matches = snapshot.withoutRemoved(matches);
+			chunkMatches = matches.iterator();
+			chunkRemaining = matches.getCardinality();
+			nextOrdinal = chunkEnd;
+		}
+		chunkRemaining--;
+		action.accept(snapshot.getProduct(chunkMatches.nextInt()));
+		return true;
+	}
+
+	@Override
+	public Spliterator<Product> trySplit() {
+		// only whole chunks not yet evaluated are split off, the first half stays with the new spliterator
+		int remainingChunks = (int) (((long) endOrdinal - nextOrdinal + chunkSize - 1) / chunkSize);
+		if (remainingChunks < 2 || chunkRemaining > 0) {
+			return null;
+		}
+		int middle = nextOrdinal + (remainingChunks / 2) * chunkSize;
+		QueryResultSpliterator prefix = new QueryResultSpliterator(snapshot, query, predicates, chunkSize, nextOrdinal, middle);
+		nextOrdinal = middle;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		// upper bound, the matches left in the current chunk and the ordinals left to evaluate
+		return chunkRemaining + Math.max(0, (long) endOrdinal - nextOrdinal);
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL | DISTINCT;
+	}
+
+}
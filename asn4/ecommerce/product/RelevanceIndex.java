@@ -0,0 +1,406 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The RelevanceIndex class ranks products by the BM25 relevance of their name and description to the words
+ * of a search text. Each term (a lower case word) has a posting list of the products containing it with the
+ * number of times it occurs, the document frequency of a term being the length of its list; the number of
+ * terms of each product and their total over the catalog are kept for the length normalization.
+ * The best products are found WAND style: the postings are read in ordinal order, and a product is only
+ * scored when the highest possible scores of the terms it may contain add up to more than the score of the
+ * current last of the best products, the other postings being skipped over.
+ * The posting lists are shared by every version of the index, which only append to them, as the tail of a
+ * CatalogSnapshot is; each version reads the postings of the products it holds.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class RelevanceIndex {
+
+	// BM25 term frequency saturation and length normalization
+	static final double K1 = 1.2;
+	static final double B = 0.75;
+
+	/**
+	 * A product and its relevance score.
+	 */
+	static final class Match {
+
+		final int ordinal;
+		final double score;
+
+		Match(int ordinal, double score) {
+			this.ordinal = ordinal;
+			this.score = score;
+		}
+
+		/**
+		 * @return true if this match ranks below the other, the lower score or the higher ordinal on equal scores
+		 */
+		boolean isWorseThan(Match other) {
+			return (score != other.score) ? score < other.score : ordinal > other.ordinal;
+		}
+	}
+
+	private final CatalogIndex index;
+	// term -> posting list, shared by every version of the index
+	private final Map<String, Postings> postings;
+	// number of terms of each product, only the first getProductCount() entries of the catalog index are valid
+	private int[] lengthColumn;
+	private long totalLength;
+
+	/**
+	 * Constructor for an empty RelevanceIndex
+	 * @param index the catalog index holding the products
+	 */
+	RelevanceIndex(CatalogIndex index) {
+		this.index = index;
+		this.postings = new ConcurrentHashMap<String, Postings>();
+		this.lengthColumn = new int[16];
+		this.totalLength = 0;
+	}
+
+	/**
+	 * Constructor for a RelevanceIndex holding the same products as a base index, which products with
+	 * higher ordinals can be added to without modifying what the base reads. The posting lists are shared.
+	 * @param index the catalog index holding the products
+	 * @param base the relevance index of the base catalog index
+	 */
+	RelevanceIndex(CatalogIndex index, RelevanceIndex base) {
+		this.index = index;
+		this.postings = base.postings;
+		this.lengthColumn = Arrays.copyOf(base.lengthColumn, base.lengthColumn.length);
+		this.totalLength = base.totalLength;
+	}
+
+	/**
+	 * Indexes the terms of the name and description of a product under its ordinal.
+	 * @param ordinal the product ordinal
+	 * @param product the product to index
+	 */
+	void addProduct(int ordinal, Product product) {
+		Map<String, Integer> termFrequencies = new HashMap<String, Integer>();
+		int length = countTerms(product, termFrequencies);
+		for (Map.Entry<String, Integer> termFrequency : termFrequencies.entrySet()) {
+			Postings termPostings = postings.get(termFrequency.getKey());
+			if (termPostings == null) {
+				termPostings = new Postings();
+				postings.put(termFrequency.getKey(), termPostings);
+			}
+			termPostings.append(ordinal, termFrequency.getValue());
+		}
+		if (ordinal >= lengthColumn.length) {
+			lengthColumn = Arrays.copyOf(lengthColumn, Math.max(ordinal + 1, lengthColumn.length * 2));
+		}
+		lengthColumn[ordinal] = length;
+		totalLength += length;
+	}
+
+	/**
+	 * Finds the products most relevant to the terms of a search text, among those containing any of them.
+	 * @param queryTerms terms of the search text, a term given twice counts twice
+	 * @param filter products which may be returned, or null for every product
+	 * @param limit maximum number of products to keep
+	 * @return heap of the best matches, the worst one at its head
+	 */
+	PriorityQueue<Match> search(List<String> queryTerms, ProductBitmap filter, int limit) {
+		PriorityQueue<Match> best = newHeap(limit);
+		int productCount = index.getProductCount();
+		if (limit <= 0 || productCount == 0) {
+			return best;
+		}
+		double averageLength = getAverageLength();
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		for (Map.Entry<String, Integer> queryTerm : countQueryTerms(queryTerms).entrySet()) {
+			Postings termPostings = postings.get(queryTerm.getKey());
+			if (termPostings != null) {
+				Cursor cursor = new Cursor(termPostings, productCount, queryTerm.getValue());
+				if (cursor.end > 0) {
+					cursors.add(cursor);
+				}
+			}
+		}
+		Cursor[] active = cursors.toArray(new Cursor[cursors.size()]);
+		int activeCount = active.length;
+		while (activeCount > 0) {
+			sortByOrdinal(active, activeCount);
+			// the pivot is the first cursor at which the highest possible scores can beat the last best match
+			double threshold = (best.size() < limit) ? 0 : best.peek().score;
+			double upperBound = 0;
+			int pivot = -1;
+			for (int i = 0; i < activeCount; i++) {
+				upperBound += active[i].upperBound;
+				if (best.size() < limit || upperBound >= threshold) {
+					pivot = i;
+					break;
+				}
+			}
+			if (pivot < 0) {
+				// no product left can beat the best matches
+				break;
+			}
+			int pivotOrdinal = active[pivot].ordinal();
+			if (active[0].ordinal() == pivotOrdinal) {
+				// every cursor up to the pivot is on the product, scoring it
+				if (filter == null || filter.contains(pivotOrdinal)) {
+					double score = 0;
+					for (int i = 0; i < activeCount && active[i].ordinal() == pivotOrdinal; i++) {
+						score += active[i].score(lengthColumn[pivotOrdinal], averageLength);
+					}
+					offer(best, new Match(pivotOrdinal, score), limit);
+				}
+				for (int i = 0; i < activeCount && active[i].ordinal() == pivotOrdinal; i++) {
+					active[i].next();
+				}
+			} else {
+				// the products before the pivot product cannot make it, skipping them
+				for (int i = 0; i < pivot; i++) {
+					active[i].advanceTo(pivotOrdinal);
+				}
+			}
+			activeCount = removeExhausted(active, activeCount);
+		}
+		return best;
+	}
+
+	/**
+	 * Scores a product which is not in the index, with the statistics of the index.
+	 * @param queryTerms terms of the search text
+	 * @param product the product to score
+	 * @return BM25 score of the product, 0 if it contains none of the terms
+	 */
+	double score(List<String> queryTerms, Product product) {
+		Map<String, Integer> termFrequencies = new HashMap<String, Integer>();
+		int length = countTerms(product, termFrequencies);
+		int productCount = index.getProductCount();
+		double averageLength = (productCount == 0) ? Math.max(1, length) : getAverageLength();
+		double score = 0;
+		for (Map.Entry<String, Integer> queryTerm : countQueryTerms(queryTerms).entrySet()) {
+			Integer frequency = termFrequencies.get(queryTerm.getKey());
+			if (frequency != null) {
+				Postings termPostings = postings.get(queryTerm.getKey());
+				int documentFrequency = (termPostings == null) ? 0 : termPostings.countBefore(productCount);
+				score += queryTerm.getValue() * idf(productCount, documentFrequency)
+						* termWeight(frequency, length, averageLength);
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Adds a match to the best matches if it ranks above the worst of them.
+	 * @param best heap of the best matches
+	 * @param match the new match
+	 * @param limit maximum number of matches to keep
+	 */
+	static void offer(PriorityQueue<Match> best, Match match, int limit) {
+		if (best.size() < limit) {
+			best.add(match);
+		} else if (limit > 0 && best.peek().isWorseThan(match)) {
+			best.poll();
+			best.add(match);
+		}
+	}
+
+	/**
+	 * @param limit maximum number of matches to keep
+	 * @return empty heap of matches, the worst one at its head
+	 */
+	static PriorityQueue<Match> newHeap(int limit) {
+		return new PriorityQueue<Match>(Math.max(1, Math.min(limit, 1024)), new Comparator<Match>() {
+			public int compare(Match a, Match b) {
+				return a.isWorseThan(b) ? -1 : (b.isWorseThan(a) ? 1 : 0);
+			}
+		});
+	}
+
+	private double getAverageLength() {
+		return Math.max(1.0, (double) totalLength / index.getProductCount());
+	}
+
+	/**
+	 * Counts the terms of the name and description of a product.
+	 * @return total number of terms
+	 */
+	private static int countTerms(Product product, Map<String, Integer> termFrequencies) {
+		int length = 0;
+		for (String field : new String[] { product.getProductName(), product.getDescription() }) {
+			if (field != null) {
+				for (String term : FuzzyTermIndex.getTerms(field)) {
+					Integer previous = termFrequencies.get(term);
+					termFrequencies.put(term, (previous == null) ? 1 : previous + 1);
+					length++;
+				}
+			}
+		}
+		return length;
+	}
+
+	private static Map<String, Integer> countQueryTerms(List<String> queryTerms) {
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (String term : queryTerms) {
+			Integer previous = counts.get(term);
+			counts.put(term, (previous == null) ? 1 : previous + 1);
+		}
+		return counts;
+	}
+
+	/**
+	 * Inverse document frequency, the probabilistic form kept positive for terms of most products.
+	 */
+	private static double idf(int productCount, int documentFrequency) {
+		return Math.log(1 + (productCount - documentFrequency + 0.5) / (documentFrequency + 0.5));
+	}
+
+	/**
+	 * Saturated and length normalized weight of a term frequency.
+	 */
+	private static double termWeight(int frequency, int length, double averageLength) {
+		return frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * length / averageLength));
+	}
+
+	// insertion sort, as a query has a handful of terms and the cursors are nearly sorted between steps
+	private static void sortByOrdinal(Cursor[] cursors, int count) {
+		for (int i = 1; i < count; i++) {
+			Cursor cursor = cursors[i];
+			int j = i - 1;
+			while (j >= 0 && cursors[j].ordinal() > cursor.ordinal()) {
+				cursors[j + 1] = cursors[j];
+				j--;
+			}
+			cursors[j + 1] = cursor;
+		}
+	}
+
+	private static int removeExhausted(Cursor[] cursors, int count) {
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (!cursors[i].isExhausted()) {
+				cursors[kept++] = cursors[i];
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Posting list of a term, pairs of ordinal and term frequency in ordinal order. Only the writer appends
+	 * to it; the entries array is replaced before the count is raised past its capacity, so a reader reading
+	 * the count and then the entries always finds the counted entries.
+	 */
+	private static final class Postings {
+
+		private volatile int[] entries = new int[4];
+		private volatile int count = 0;
+		private volatile int maxFrequency = 0;
+
+		void append(int ordinal, int frequency) {
+			int size = count;
+			// entries left by a version which was never published are dropped
+			while (size > 0 && entries[2 * (size - 1)] >= ordinal) {
+				size--;
+			}
+			int[] current = entries;
+			if (2 * size == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+				entries = current;
+			}
+			current[2 * size] = ordinal;
+			current[2 * size + 1] = frequency;
+			maxFrequency = Math.max(maxFrequency, frequency);
+			count = size + 1;
+		}
+
+		/**
+		 * @return number of entries with an ordinal below productCount
+		 */
+		int countBefore(int productCount) {
+			int size = count;
+			int[] current = entries;
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (current[2 * middle] < productCount) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Position in the posting list of a query term, within the products of a version of the index.
+	 */
+	private static final class Cursor {
+
+		private final int[] entries;
+		private final int end;
+		private final double idf;
+		private final int queryFrequency;
+		private final double upperBound;
+		private int position;
+
+		Cursor(Postings termPostings, int productCount, int queryFrequency) {
+			this.end = termPostings.countBefore(productCount);
+			this.entries = termPostings.entries;
+			this.idf = idf(productCount, end);
+			this.queryFrequency = queryFrequency;
+			// the weight grows with the frequency and falls with the length, so is highest for the most frequent and shortest
+			int maxFrequency = termPostings.maxFrequency;
+			this.upperBound = queryFrequency * idf * maxFrequency * (K1 + 1) / (maxFrequency + K1 * (1 - B));
+			this.position = 0;
+		}
+
+		int ordinal() {
+			return entries[2 * position];
+		}
+
+		boolean isExhausted() {
+			return position >= end;
+		}
+
+		void next() {
+			position++;
+		}
+
+		double score(int length, double averageLength) {
+			return queryFrequency * idf * termWeight(entries[2 * position + 1], length, averageLength);
+		}
+
+		/**
+		 * Moves to the first entry at or after an ordinal, galloping then binary searching.
+		 */
+		void advanceTo(int ordinal) {
+			int step = 1;
+			int low = position;
+			int high = position;
+			while (high < end && entries[2 * high] < ordinal) {
+				low = high + 1;
+				high += step;
+				step *= 2;
+			}
+			high = Math.min(high, end);
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (entries[2 * middle] < ordinal) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			position = low;
+		}
+	}
+
+}
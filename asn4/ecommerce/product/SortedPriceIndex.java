@@ -0,0 +1,171 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.Arrays;
+
+/**
+ * The SortedPriceIndex class keeps the product ordinals sorted by price, products with the same price
+ * by ordinal. A price ceiling is then a binary search for the cutoff, the matching products being the
+ * slice of the sorted ordinals before it, and the cheapest or most expensive products can be read from
+ * either end of the index without scanning the catalog.
+ * Products are appended to the catalog far more often than they are queried during an import, so newly
+ * added ordinals are not inserted one at a time; they are sorted and merged in as a batch once the catalog
+ * index is built. The merged array replaces the sorted one as a whole, so queries read it without locking.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class SortedPriceIndex {
+
+	private final CatalogIndex index;
+	// ordinals sorted by price, never modified once published, the ordinals from its length up to the
+	// product count are not merged in yet
+	private volatile int[] sortedOrdinals;
+
+	/**
+	 * Constructor for an empty SortedPriceIndex
+	 * @param index the catalog index holding the price column
+	 */
+	SortedPriceIndex(CatalogIndex index) {
+		this.index = index;
+		this.sortedOrdinals = new int[0];
+	}
+
+	/**
+	 * Constructor for a SortedPriceIndex starting from the sorted ordinals of a base index, the
+	 * ordinals added since are merged in by update or on the next read. The sorted array is shared,
+	 * as merging always builds a new array.
+	 * @param index the catalog index holding the price column
+	 * @param base the sorted index of the base catalog index
+	 */
+	SortedPriceIndex(CatalogIndex index, SortedPriceIndex base) {
+		this.index = index;
+		this.sortedOrdinals = base.sortedOrdinals;
+	}
+
+	/**
+	 * Merges in the ordinals added since the last merge, so reads find the index up to date.
+	 * Called once the catalog index is built, before it is published to queries.
+	 */
+	void update() {
+		getSortedOrdinals();
+	}
+
+	/**
+	 * @return the ordinals sorted by price, with every product currently in the catalog merged in.
+	 * Only the first getProductCount() entries of the catalog index are valid, and they must not be modified.
+	 */
+	int[] getSortedOrdinals() {
+		int[] sorted = sortedOrdinals;
+		if (sorted.length < index.getProductCount()) {
+			sorted = merge();
+		}
+		return sorted;
+	}
+
+	/**
+	 * Counts the products costing no more than a price.
+	 * @param sortedOrdinals ordinals returned by getSortedOrdinals
+	 * @param count number of valid ordinals
+	 * @param maxPrice query price maximum
+	 * @return number of products, which is also the end of the slice of matching ordinals
+	 */
+	int countPriceAtMost(int[] sortedOrdinals, int count, float maxPrice) {
+		float[] prices = index.getPriceColumn();
+		// first position with a price above the maximum
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (prices[sortedOrdinals[middle]] <= maxPrice) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the first position of the run of products with the same price as the product at a position.
+	 * @param sortedOrdinals ordinals returned by getSortedOrdinals
+	 * @param position a position in the sorted ordinals
+	 * @return first position with the same price
+	 */
+	int findRunStart(int[] sortedOrdinals, int position) {
+		float[] prices = index.getPriceColumn();
+		float price = prices[sortedOrdinals[position]];
+		int low = 0;
+		int high = position;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (Float.compare(prices[sortedOrdinals[middle]], price) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Sorts the ordinals added since the last merge, merges them with the sorted ordinals and publishes
+	 * the result. Only merges run one at a time, reads never wait for them.
+	 * @return the new sorted ordinals
+	 */
+	private synchronized int[] merge() {
+		int[] sortedOrdinals = this.sortedOrdinals;
+		int sortedCount = sortedOrdinals.length;
+		int productCount = index.getProductCount();
+		if (sortedCount >= productCount) {
+			// merged by another thread meanwhile
+			return sortedOrdinals;
+		}
+		final float[] prices = index.getPriceColumn();
+		int addedCount = productCount - sortedCount;
+		int[] added = new int[addedCount];
+		for (int i = 0; i < addedCount; i++) {
+			added[i] = sortedCount + i;
+		}
+		added = sortByPrice(added, prices);
+
+		int[] merged = new int[productCount];
+		int i = 0, j = 0, k = 0;
+		while (i < sortedCount && j < addedCount) {
+			// on equal prices the existing ordinal is the lower one
+			if (Float.compare(prices[added[j]], prices[sortedOrdinals[i]]) < 0) {
+				merged[k++] = added[j++];
+			} else {
+				merged[k++] = sortedOrdinals[i++];
+			}
+		}
+		while (i < sortedCount) {
+			merged[k++] = sortedOrdinals[i++];
+		}
+		while (j < addedCount) {
+			merged[k++] = added[j++];
+		}
+		this.sortedOrdinals = merged;
+		return merged;
+	}
+
+	/**
+	 * Sorts ascending ordinals by price, keeping the ordinals of equal prices in order.
+	 * The prices are sorted as keys packed with the position of their ordinal, so no boxing is needed.
+	 */
+	private static int[] sortByPrice(int[] ordinals, float[] prices) {
+		long[] keys = new long[ordinals.length];
+		for (int i = 0; i < ordinals.length; i++) {
+			// flipping the value bits of negative floats makes the signed bits sort as Float.compare does
+			int priceBits = Float.floatToIntBits(prices[ordinals[i]]);
+			priceBits ^= (priceBits >> 31) & 0x7fffffff;
+			keys[i] = ((long) priceBits << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] sorted = new int[ordinals.length];
+		for (int i = 0; i < keys.length; i++) {
+			sorted[i] = ordinals[(int) keys[i]];
+		}
+		return sorted;
+	}
+
+}
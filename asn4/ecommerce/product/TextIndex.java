@@ -0,0 +1,155 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The TextIndex class is an inverted trigram index over the name and description of the products
+ * in the ProductCatalog. Every 3 character substring of a field is mapped to the posting list of
+ * products containing it. As any text containing the query text must also contain all of its trigrams,
+ * intersecting the posting lists gives a candidate set which keeps the substring semantics of the
+ * text search. Candidates still need to be checked with indexOf, as the trigrams may occur apart.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class TextIndex {
+
+	// length of the indexed grams
+	static final int GRAM_LENGTH = 3;
+	// odd multiplier of the packed trigrams, the 64 bit golden ratio
+	private static final long GRAM_KEY_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	// trigram (packed into a long) -> posting list of product ordinals
+	private Map<Long, ProductBitmap> gramIndex;
+	// trigrams whose posting list is not shared with the base index, null if the index shares none
+	private Set<Long> copiedGrams;
+
+	/**
+	 * Constructor for an empty TextIndex
+	 */
+	TextIndex() {
+		this.gramIndex = new HashMap<Long, ProductBitmap>();
+		this.copiedGrams = null;
+	}
+
+	/**
+	 * Constructor for a TextIndex holding the same products as a base index, which products with
+	 * higher ordinals can be added to without modifying the base. Each posting list is only copied
+	 * the first time a product is added to it.
+	 * @param base the index to copy
+	 */
+	TextIndex(TextIndex base) {
+		this.gramIndex = new HashMap<Long, ProductBitmap>(base.gramIndex);
+		this.copiedGrams = new HashSet<Long>();
+	}
+
+	/**
+	 * Indexes the name and description of a product under its ordinal.
+	 * @param ordinal the product ordinal
+	 * @param product the product to index
+	 */
+	void addProduct(int ordinal, Product product) {
+		addField(ordinal, product.getProductName());
+		addField(ordinal, product.getDescription());
+	}
+
+	/**
+	 * Returns the products which may contain the search text in their name or description.
+	 * @param searchText the query text
+	 * @return candidate posting list, which must not be modified, or null if the text is too short to use the index
+	 */
+	ProductBitmap getCandidates(String searchText) {
+		if (searchText.length() < GRAM_LENGTH) {
+			return null;
+		}
+		// collecting the posting lists, any missing trigram means no product can match
+		List<ProductBitmap> postingLists = new ArrayList<ProductBitmap>();
+		for (int i = 0; i + GRAM_LENGTH <= searchText.length(); i++) {
+			ProductBitmap postingList = gramIndex.get(gramKey(searchText, i));
+			if (postingList == null) {
+				return new ProductBitmap();
+			}
+			if (!postingLists.contains(postingList)) {
+				postingLists.add(postingList);
+			}
+		}
+
+		// intersecting the shortest posting lists first keeps the intermediate results small
+		ProductBitmap candidates = null;
+		while (!postingLists.isEmpty()) {
+			ProductBitmap shortest = postingLists.get(0);
+			for (ProductBitmap postingList : postingLists) {
+				if (postingList.getCardinality() < shortest.getCardinality()) {
+					shortest = postingList;
+				}
+			}
+			postingLists.remove(shortest);
+			candidates = (candidates == null) ? shortest : candidates.and(shortest);
+			if (candidates.isEmpty()) {
+				break;
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Estimates the number of candidates for the search text, the smallest posting list of its trigrams.
+	 * @param searchText the query text
+	 * @return upper bound of the number of candidates, or -1 if the text is too short to use the index
+	 */
+	int estimateCandidates(String searchText) {
+		if (searchText.length() < GRAM_LENGTH) {
+			return -1;
+		}
+		int estimate = Integer.MAX_VALUE;
+		for (int i = 0; i + GRAM_LENGTH <= searchText.length(); i++) {
+			ProductBitmap postingList = gramIndex.get(gramKey(searchText, i));
+			if (postingList == null) {
+				return 0;
+			}
+			estimate = Math.min(estimate, postingList.getCardinality());
+		}
+		return estimate;
+	}
+
+	/**
+	 * Adds every trigram of a field to the index.
+	 * @param ordinal the product ordinal
+	 * @param text the field text
+	 */
+	private void addField(int ordinal, String text) {
+		if (text == null) {
+			return;
+		}
+		for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+			Long key = gramKey(text, i);
+			ProductBitmap postingList = gramIndex.get(key);
+			if (postingList == null) {
+				postingList = new ProductBitmap();
+				gramIndex.put(key, postingList);
+				if (copiedGrams != null) {
+					copiedGrams.add(key);
+				}
+			} else if (copiedGrams != null && copiedGrams.add(key)) {
+				postingList = postingList.copyForAppend();
+				gramIndex.put(key, postingList);
+			}
+			// repeated trigrams of the same product are ignored by the posting list
+			postingList.add(ordinal);
+		}
+	}
+
+	// private utility method, packs the 3 chars starting at offset into a single key. The packed chars are
+	// multiplied by an odd constant, which keeps keys distinct but spreads them over the hash table, as the
+	// hash of the packed chars alone sends most trigrams of a few letters to the same few buckets
+	private Long gramKey(String text, int offset) {
+		long packed = ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+		return Long.valueOf(packed * GRAM_KEY_MULTIPLIER);
+	}
+
+}
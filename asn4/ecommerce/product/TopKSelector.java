@@ -0,0 +1,213 @@
+package cscie97.asn4.ecommerce.product;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+
+/**
+ * The TopKSelector class picks the first K matches of a query in a sort order, without sorting all
+ * of the matches. The matches are streamed through a bounded binary heap of K ordinals whose root is
+ * the worst of the K kept so far, a match is only added if it sorts before the root. Memory is O(K)
+ * and time O(n log K) in the number of matches n, and the ratings and prices are read from the
+ * columns of the CatalogIndex rather than from the products.
+ * When sorting by rating, or by price when the matches are dense enough, the products are instead read
+ * in sort order from the rating or sorted price index, stopping as soon as K matches have been found.
+ * The indexes only cover the indexed products of a snapshot, so the heap is used while it has a tail.
+ *
+ * @author Frank O'Connor
+ *
+ */
+class TopKSelector {
+
+	// the price index is walked when it is expected to check this many times fewer entries than there are matches
+	private static final int PRICE_WALK_FRACTION = 8;
+
+	private final CatalogSnapshot snapshot;
+	private final CatalogIndex index;
+	private final ProductSortOrder sortOrder;
+
+	/**
+	 * Constructor for TopKSelector
+	 * @param snapshot the catalog snapshot the matches are from
+	 * @param sortOrder order to select the products in
+	 */
+	TopKSelector(CatalogSnapshot snapshot, ProductSortOrder sortOrder) {
+		this.snapshot = snapshot;
+		this.index = snapshot.getIndex();
+		this.sortOrder = sortOrder;
+	}
+
+	/**
+	 * Selects the first K matches in sort order.
+	 * @param matches bitmap of the matching product ordinals
+	 * @param k number of products to select
+	 * @return up to K ordinals, in sort order
+	 */
+	int[] select(ProductBitmap matches, int k) {
+		int matchCount = matches.getCardinality();
+		int size = Math.min(k, matchCount);
+		if (size <= 0) {
+			return new int[0];
+		}
+		if (snapshot.getTailCount() > 0) {
+			return selectWithHeap(matches, size);
+		}
+		if (sortOrder == ProductSortOrder.RATING_HIGHEST_FIRST) {
+			return selectByRating(matches, size);
+		}
+		// walking the price index checks about K * products / matches entries, the heap reads every match
+		long productCount = index.getProductCount();
+		if ((long) size * productCount / matchCount < matchCount / PRICE_WALK_FRACTION) {
+			return selectByPrice(matches, size);
+		}
+		return selectWithHeap(matches, size);
+	}
+
+	/**
+	 * Selects the first matches in sort order by pushing every match through a bounded heap.
+	 */
+	private int[] selectWithHeap(ProductBitmap matches, int size) {
+		int[] heap = new int[size];
+		int count = 0;
+		PrimitiveIterator.OfInt matchIter = matches.iterator();
+		while (matchIter.hasNext()) {
+			int ordinal = matchIter.nextInt();
+			if (count < size) {
+				heap[count] = ordinal;
+				siftUp(heap, count++);
+			} else if (compare(ordinal, heap[0]) < 0) {
+				heap[0] = ordinal;
+				siftDown(heap, size);
+			}
+		}
+
+		// taking the worst of the remaining ordinals off the root fills the result from the back
+		int[] selected = new int[size];
+		for (int last = size - 1; last >= 0; last--) {
+			selected[last] = heap[0];
+			heap[0] = heap[last];
+			siftDown(heap, last);
+		}
+		return selected;
+	}
+
+	/**
+	 * Selects the highest rated matches, reading the matches of each rating from 5 down in ordinal order.
+	 */
+	private int[] selectByRating(ProductBitmap matches, int size) {
+		int[] selected = new int[size];
+		int count = 0;
+		for (int rating = 5; rating >= 0 && count < size; rating--) {
+			PrimitiveIterator.OfInt ratingIter = matches.and(index.getRatingIndex(rating)).iterator();
+			while (ratingIter.hasNext() && count < size) {
+				selected[count++] = ratingIter.nextInt();
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Selects the cheapest or most expensive matches, walking the sorted price index from either end.
+	 * Walking down from the most expensive, each run of equal prices is read forward to keep ordinal order.
+	 */
+	private int[] selectByPrice(ProductBitmap matches, int size) {
+		SortedPriceIndex priceIndex = index.getPriceIndex();
+		int[] sortedOrdinals = priceIndex.getSortedOrdinals();
+		int productCount = index.getProductCount();
+		int[] selected = new int[size];
+		int count = 0;
+		if (sortOrder == ProductSortOrder.PRICE_LOWEST_FIRST) {
+			for (int i = 0; i < productCount && count < size; i++) {
+				if (matches.contains(sortedOrdinals[i])) {
+					selected[count++] = sortedOrdinals[i];
+				}
+			}
+		} else {
+			int runEnd = productCount - 1;
+			while (runEnd >= 0 && count < size) {
+				int runStart = priceIndex.findRunStart(sortedOrdinals, runEnd);
+				for (int i = runStart; i <= runEnd && count < size; i++) {
+					if (matches.contains(sortedOrdinals[i])) {
+						selected[count++] = sortedOrdinals[i];
+					}
+				}
+				runEnd = runStart - 1;
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Selects the products of a page of the matches in sort order.
+	 * @param matches bitmap of the matching product ordinals
+	 * @param offset number of products to skip
+	 * @param limit max number of products to return
+	 * @return the ordinals of the page, in sort order
+	 */
+	int[] selectPage(ProductBitmap matches, int offset, int limit) {
+		int k = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+		int[] selected = select(matches, k);
+		if (offset >= selected.length) {
+			return new int[0];
+		}
+		return Arrays.copyOfRange(selected, offset, selected.length);
+	}
+
+	/**
+	 * Compares two products in sort order, products which sort equal are ordered by ordinal.
+	 * @return negative if the product a sorts before b
+	 */
+	int compare(int a, int b) {
+		int result;
+		switch (sortOrder) {
+		case RATING_HIGHEST_FIRST:
+			result = Integer.compare(snapshot.getRating(b), snapshot.getRating(a));
+			break;
+		case PRICE_LOWEST_FIRST:
+			result = Float.compare(snapshot.getPrice(a), snapshot.getPrice(b));
+			break;
+		case PRICE_HIGHEST_FIRST:
+			result = Float.compare(snapshot.getPrice(b), snapshot.getPrice(a));
+			break;
+		default:
+			result = 0;
+		}
+		return (result != 0) ? result : Integer.compare(a, b);
+	}
+
+	// heap utility methods, the root is the product sorting last
+	private void siftUp(int[] heap, int position) {
+		int ordinal = heap[position];
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (compare(heap[parent], ordinal) >= 0) {
+				break;
+			}
+			heap[position] = heap[parent];
+			position = parent;
+		}
+		heap[position] = ordinal;
+	}
+
+	private void siftDown(int[] heap, int size) {
+		int position = 0;
+		int ordinal = heap[0];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && compare(heap[child + 1], heap[child]) > 0) {
+				child++;
+			}
+			if (compare(heap[child], ordinal) <= 0) {
+				break;
+			}
+			heap[position] = heap[child];
+			position = child;
+		}
+		if (size > 0) {
+			heap[position] = ordinal;
+		}
+	}
+
+}
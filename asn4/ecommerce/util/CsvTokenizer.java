@@ -0,0 +1,374 @@
+package cscie97.asn4.ecommerce.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * The CsvTokenizer class reads the csv input files of the importers and the QueryProcessor line by line,
+ * without regular expressions. Each line is read from a buffered Reader into a reusable char array, trimmed,
+ * converted to lower case for case insensitivity, and split on the commas not escaped with a backslash (\,).
+ * The positions of the pipes (|) separating sub-lists are recorded in the same pass, so a field can later be
+ * split into its sub-list without scanning it again.
+ * The fields are returned as CharSequence slices of the line, which are reused for the next line: callers
+ * only copy the fields they keep, through getTrimmed, getUnescaped or getSubFields.
+ * Fields split as String.split would: a line without an unescaped comma is a single field, and empty fields
+ * at the end of the line are dropped.
+ *
+ * @author Frank O'Connor
+ *
+ */
+public class CsvTokenizer implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	// parameters of the 64 bit FNV-1a hash of getLineFingerprint
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int bufferPosition = 0;
+	private int bufferEnd = 0;
+	// set after a carriage return, so a following line feed does not end another line
+	private boolean skipLineFeed = false;
+
+	// the current line, trimmed, is line[lineStart, lineEnd)
+	private char[] line = new char[256];
+	private int lineStart = 0;
+	private int lineEnd = 0;
+	private int lineNumber = 0;
+
+	// field i of the current line is line[fieldStarts[i], fieldEnds[i])
+	private int[] fieldStarts = new int[16];
+	private int[] fieldEnds = new int[16];
+	private int fieldCount = 0;
+	// positions of the pipes of the current line, in order
+	private int[] pipePositions = new int[16];
+	private int pipeCount = 0;
+	private Field[] fields = new Field[0];
+
+	/**
+	 * Constructor for a CsvTokenizer reading a stream in the platform default charset, as Scanner does.
+	 * @param in the stream to read
+	 */
+	public CsvTokenizer(InputStream in) {
+		this(new InputStreamReader(in));
+	}
+
+	/**
+	 * Constructor for a CsvTokenizer reading characters.
+	 * @param reader the characters to read, buffered by the tokenizer
+	 */
+	public CsvTokenizer(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads and splits the next line. Lines end at a line feed, a carriage return or both, as for Scanner.
+	 * @return false at the end of the input, when there is no next line
+	 * @throws IOException if the input cannot be read
+	 */
+	public boolean nextLine() throws IOException {
+		int length = 0;
+		boolean ended = false;
+		boolean read = false;
+		while (!ended) {
+			if (bufferPosition == bufferEnd) {
+				bufferEnd = reader.read(buffer, 0, BUFFER_SIZE);
+				bufferPosition = 0;
+				if (bufferEnd <= 0) {
+					bufferEnd = 0;
+					break;
+				}
+			}
+			if (skipLineFeed) {
+				skipLineFeed = false;
+				if (buffer[bufferPosition] == '\n') {
+					bufferPosition++;
+					continue;
+				}
+			}
+			read = true;
+			while (bufferPosition < bufferEnd) {
+				char c = buffer[bufferPosition++];
+				if (c == '\n' || c == '\r' || (c >= 0x80 && isUnicodeLineSeparator(c))) {
+					skipLineFeed = (c == '\r');
+					ended = true;
+					break;
+				}
+				if (length == line.length) {
+					line = Arrays.copyOf(line, length * 2);
+				}
+				if (c >= 'A' && c <= 'Z') {
+					c = (char) (c + ('a' - 'A'));
+				} else if (c >= 0x80) {
+					c = Character.toLowerCase(c);
+				}
+				line[length++] = c;
+			}
+		}
+		if (!read) {
+			return false;
+		}
+		lineNumber++;
+		// trimming as String.trim does
+		lineStart = 0;
+		lineEnd = length;
+		while (lineStart < lineEnd && line[lineStart] <= ' ') {
+			lineStart++;
+		}
+		while (lineEnd > lineStart && line[lineEnd - 1] <= ' ') {
+			lineEnd--;
+		}
+		split();
+		return true;
+	}
+
+	/**
+	 * @return true for the line separators Scanner also ends lines at, besides line feeds and carriage returns
+	 */
+	private static boolean isUnicodeLineSeparator(char c) {
+		return c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * Splits the current line on its unescaped commas, recording its pipes on the way.
+	 */
+	private void split() {
+		fieldCount = 0;
+		pipeCount = 0;
+		int fieldStart = lineStart;
+		for (int i = lineStart; i < lineEnd; i++) {
+			char c = line[i];
+			if (c == ',' && (i == lineStart || line[i - 1] != '\\')) {
+				addField(fieldStart, i);
+				fieldStart = i + 1;
+			} else if (c == '|') {
+				if (pipeCount == pipePositions.length) {
+					pipePositions = Arrays.copyOf(pipePositions, pipeCount * 2);
+				}
+				pipePositions[pipeCount++] = i;
+			}
+		}
+		addField(fieldStart, lineEnd);
+		// as String.split, dropping the empty fields at the end of a line holding a delimiter
+		if (fieldCount > 1) {
+			while (fieldCount > 0 && fieldStarts[fieldCount - 1] == fieldEnds[fieldCount - 1]) {
+				fieldCount--;
+			}
+		}
+	}
+
+	private void addField(int start, int end) {
+		if (fieldCount == fieldStarts.length) {
+			fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+			fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+		}
+		fieldStarts[fieldCount] = start;
+		fieldEnds[fieldCount] = end;
+		fieldCount++;
+	}
+
+	/**
+	 * @return number of the current line in the input, from 1
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return true if the current line is blank or a comment starting with #, which the readers ignore
+	 */
+	public boolean isBlankOrComment() {
+		return lineStart == lineEnd || line[lineStart] == '#';
+	}
+
+	/**
+	 * @return copy of the current line, trimmed and in lower case
+	 */
+	public String getLine() {
+		return new String(line, lineStart, lineEnd - lineStart);
+	}
+
+	/**
+	 * Hashes the current line, trimmed and in lower case, with the 64 bit FNV-1a hash, so a reader can tell
+	 * whether a line changed since it was last read without keeping or parsing it.
+	 * @return fingerprint of the current line
+	 */
+	public long getLineFingerprint() {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = lineStart; i < lineEnd; i++) {
+			hash = (hash ^ line[i]) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return number of fields of the current line
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * Returns a field of the current line as a slice of the line, valid until the next line is read.
+	 * @param index index of the field, from 0
+	 * @return the field, untrimmed and with its escape characters
+	 */
+	public CharSequence getField(int index) {
+		checkIndex(index);
+		if (fields.length < fieldCount) {
+			Field[] grown = Arrays.copyOf(fields, Math.max(fieldCount, fields.length * 2));
+			for (int i = fields.length; i < grown.length; i++) {
+				grown[i] = new Field(i);
+			}
+			fields = grown;
+		}
+		return fields[index];
+	}
+
+	/**
+	 * @param index index of the field, from 0
+	 * @return the field trimmed, as String.trim does
+	 */
+	public String getTrimmed(int index) {
+		checkIndex(index);
+		int start = trimmedStart(index);
+		return new String(line, start, trimmedEnd(index, start) - start);
+	}
+
+	/**
+	 * @param index index of the field, from 0
+	 * @return the field trimmed and with every backslash escape character removed
+	 */
+	public String getUnescaped(int index) {
+		checkIndex(index);
+		int start = trimmedStart(index);
+		int end = trimmedEnd(index, start);
+		StringBuilder unescaped = null;
+		for (int i = start; i < end; i++) {
+			if (line[i] == '\\') {
+				if (unescaped == null) {
+					unescaped = new StringBuilder(end - start).append(line, start, i - start);
+				}
+			} else if (unescaped != null) {
+				unescaped.append(line[i]);
+			}
+		}
+		return (unescaped == null) ? new String(line, start, end - start) : unescaped.toString();
+	}
+
+	/**
+	 * Splits a trimmed field into its pipe separated sub-list, as String.split would: a field without
+	 * a pipe is a single entry, even when empty, and empty entries at the end of the list are dropped.
+	 * @param index index of the field, from 0
+	 * @return the entries of the sub-list, untrimmed
+	 */
+	public String[] getSubFields(int index) {
+		checkIndex(index);
+		int start = trimmedStart(index);
+		int end = trimmedEnd(index, start);
+		int first = 0;
+		while (first < pipeCount && pipePositions[first] < start) {
+			first++;
+		}
+		int last = first;
+		while (last < pipeCount && pipePositions[last] < end) {
+			last++;
+		}
+		if (first == last) {
+			return new String[] { new String(line, start, end - start) };
+		}
+		// dropping the empty entries at the end
+		int entryCount = last - first + 1;
+		while (entryCount > 0 && subFieldStart(first, entryCount - 1, start) == subFieldEnd(first, last, entryCount - 1, end)) {
+			entryCount--;
+		}
+		String[] entries = new String[entryCount];
+		for (int i = 0; i < entryCount; i++) {
+			int entryStart = subFieldStart(first, i, start);
+			entries[i] = new String(line, entryStart, subFieldEnd(first, last, i, end) - entryStart);
+		}
+		return entries;
+	}
+
+	/**
+	 * Closes the underlying reader.
+	 * @throws IOException if the reader cannot be closed
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= fieldCount) {
+			throw new IndexOutOfBoundsException("field " + index + " of " + fieldCount);
+		}
+	}
+
+	/**
+	 * @return start of entry i of a sub-list whose pipes are pipePositions[first, last)
+	 */
+	private int subFieldStart(int first, int i, int start) {
+		return (i == 0) ? start : pipePositions[first + i - 1] + 1;
+	}
+
+	/**
+	 * @return end of entry i of a sub-list whose pipes are pipePositions[first, last)
+	 */
+	private int subFieldEnd(int first, int last, int i, int end) {
+		return (first + i < last) ? pipePositions[first + i] : end;
+	}
+
+	private int trimmedStart(int index) {
+		int start = fieldStarts[index];
+		while (start < fieldEnds[index] && line[start] <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	private int trimmedEnd(int index, int start) {
+		int end = fieldEnds[index];
+		while (end > start && line[end - 1] <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * A field of the current line, read through to the line array.
+	 */
+	private final class Field implements CharSequence {
+
+		private final int index;
+
+		Field(int index) {
+			this.index = index;
+		}
+
+		public int length() {
+			return fieldEnds[index] - fieldStarts[index];
+		}
+
+		public char charAt(int i) {
+			if (i < 0 || i >= length()) {
+				throw new IndexOutOfBoundsException("index " + i + " of " + length());
+			}
+			return line[fieldStarts[index] + i];
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return toString().subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return new String(line, fieldStarts[index], length());
+		}
+	}
+
+}